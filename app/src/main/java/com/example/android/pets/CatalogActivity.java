@@ -17,34 +17,68 @@ package com.example.android.pets;
 
 
 
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
-import android.database.Cursor;
+import android.database.SQLException;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.design.widget.FloatingActionButton;
-import android.support.v4.app.LoaderManager;
-import android.support.v4.content.Loader;
 import android.support.v7.app.AppCompatActivity;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
+import android.view.ContextMenu;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AdapterView;
+import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.Toast;
 
+import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDataGenerator;
+import com.example.android.pets.data.PetList;
+import com.example.android.pets.data.PetObservable;
 
 /**
  * Displays list of pets that were entered and stored in the app.
  */
-public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor>{
+public class CatalogActivity extends AppCompatActivity {
 
     private static String LOG_TAG = CatalogActivity.class.getSimpleName();
 
-    private static final int URL_LOADER = 0;
+    /** How long the filter waits after the last keystroke before it queries. */
+    private static final long FILTER_DELAY_MILLIS = 250;
+
+    /** Number of pets the debug menu generates, always from the same seed. */
+    private static final int GENERATED_PET_COUNT = 10000;
+    private static final long GENERATED_PET_SEED = 42;
 
     //private PetDbHelper mDbHelper;
 
+    private PetAdapter mPetAdapter;
+
+    private EditText mFilterEditText;
+
+    private final Handler mHandler = new Handler();
+
+    /** The pets matching the current filter text, while the activity is started. */
+    private PetObservable.Subscription mPetsSubscription;
+
+    private final Runnable mStartFilterQuery = new Runnable() {
+        @Override
+        public void run() {
+            displayDatabaseInfo();
+        }
+    };
+
 
 
     @Override
@@ -70,7 +104,34 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         displayDatabaseInfo();
 */
 
-        getLoaderManager().initLoader(URL_LOADER, null, CatalogActivity.this);
+        ListView listViewPets = (ListView) findViewById(R.id.list_view_pets);
+        mPetAdapter = new PetAdapter(this);
+        listViewPets.setAdapter(mPetAdapter);
+
+        View emptyView = findViewById(R.id.empty_view);
+        listViewPets.setEmptyView(emptyView);
+
+        // Long pressing a pet offers to record its adoption
+        registerForContextMenu(listViewPets);
+
+        // Query again once the user stops typing for a moment
+        mFilterEditText = (EditText) findViewById(R.id.filter);
+        mFilterEditText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                // The result of a query for the previous text is of no use any more
+                cancelFilterQuery();
+                mHandler.postDelayed(mStartFilterQuery, FILTER_DELAY_MILLIS);
+            }
+        });
     }
 
     @Override
@@ -81,39 +142,54 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
 
     }
 
+    @Override
+    protected void onStop() {
+        // Nothing to show the results in, and no need to follow changes
+        cancelFilterQuery();
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        // Closes the cursor behind the shown pets
+        mPetAdapter.setPets(null);
+        super.onDestroy();
+    }
+
 
     /**
-     * Temporary helper method to display information in the onscreen TextView about the state of
-     * the pets database.
+     * Subscribes to the pets matching the filter text, which keeps the list up to date until
+     * the text changes. Cancels the subscription for the previous text together with its
+     * running query, so at most one runs.
      */
     private void displayDatabaseInfo(){
+        cancelFilterQuery();
+
+        String filter = mFilterEditText.getText().toString().trim();
+        Uri uri = filter.isEmpty() ? PetEntry.CONTENT_URI : PetEntry.buildFilterUri(filter);
+
+        mPetsSubscription = new PetObservable(this, uri, null, null, null)
+                .subscribe(new PetObservable.Subscriber() {
+                    @Override
+                    public void onNext(PetList pets) {
+                        mPetAdapter.setPets(pets);
+                    }
+
+                    @Override
+                    public void onError(Throwable error) {
+                        Log.e(LOG_TAG, "Loading pets failed", error);
+                    }
+                });
+    }
 
-        String[] projection = {
-                PetEntry._ID,
-                PetEntry.COLUMN_PET_NAME,
-                PetEntry.COLUMN_PET_BREED,
-                PetEntry.COLUMN_PET_GENDER,
-                PetEntry.COLUMN_PET_WEIGHT
-        };
-
-
-        Cursor cursor = getContentResolver().query(
-                PetEntry.CONTENT_URI,   //URI of the db
-                projection,             // The columns to return
-                null,                   // The columns for the WHERE clause
-                null,
-                null
-        );
-
-
-        ListView listViewPets = (ListView) findViewById(R.id.list_view_pets);
-        PetCursorAdapter petCursorAdapter = new PetCursorAdapter(this,cursor);
-        listViewPets.setAdapter(petCursorAdapter);
-
-        View emptyView = findViewById(R.id.empty_view);
-        listViewPets.setEmptyView(emptyView);
-
+    private void cancelFilterQuery() {
+        mHandler.removeCallbacks(mStartFilterQuery);
+        if (mPetsSubscription != null) {
+            mPetsSubscription.cancel();
+            mPetsSubscription = null;
+        }
     }
+
     /*
     private void displayDatabaseInfo() {
         // To access our database, we instantiate our subclass of SQLiteOpenHelper
@@ -233,6 +309,39 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         Log.i(LOG_TAG, "New row is" + newUri.getQuery());
     }
 
+    /**
+     * Records that the pet was adopted. The provider stamps the time of the change, from which
+     * {@link PetContract#METHOD_ARCHIVE} later tells when the pet can be archived.
+     */
+    private void markPetAdopted(long id) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_STATUS, PetEntry.STATUS_ADOPTED);
+        int rowsUpdated = getContentResolver().update(
+                ContentUris.withAppendedId(PetEntry.CONTENT_URI, id), values, null, null);
+        Log.i(LOG_TAG, "Marked " + rowsUpdated + " pet adopted");
+    }
+
+    @Override
+    public void onCreateContextMenu(ContextMenu menu, View v,
+                                    ContextMenu.ContextMenuInfo menuInfo) {
+        super.onCreateContextMenu(menu, v, menuInfo);
+        getMenuInflater().inflate(R.menu.menu_catalog_pet, menu);
+    }
+
+    @Override
+    public boolean onContextItemSelected(MenuItem item) {
+        // User picked an option for the long pressed pet
+        switch (item.getItemId()) {
+            case R.id.action_mark_adopted:
+                AdapterView.AdapterContextMenuInfo info =
+                        (AdapterView.AdapterContextMenuInfo) item.getMenuInfo();
+                // The adapter has stable ids, which are the ids of the pets
+                markPetAdopted(info.id);
+                return true;
+        }
+        return super.onContextItemSelected(item);
+    }
+
 
 
 
@@ -241,6 +350,8 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+        // Generating test data is for development only
+        menu.findItem(R.id.action_insert_generated_data).setVisible(BuildConfig.DEBUG);
         return true;
     }
 
@@ -251,7 +362,15 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
                 insertPet();
-                displayDatabaseInfo();
+                return true;
+            // Respond to a click on the "Insert Generated Data" debug menu option
+            case R.id.action_insert_generated_data:
+                Toast.makeText(this, R.string.generating_pets, Toast.LENGTH_SHORT).show();
+                new GeneratePetsTask().execute();
+                return true;
+            // Respond to a click on the "Archive Adopted Pets" menu option
+            case R.id.action_archive:
+                new ArchivePetsTask().execute();
                 return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
@@ -261,18 +380,63 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         return super.onOptionsItemSelected(item);
     }
 
-    @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        return null;
-    }
-
-    @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+    /**
+     * Moves the pets adopted more than {@link PetContract#DEFAULT_ARCHIVE_AFTER_DAYS} days ago
+     * into the archive and reports how many there were.
+     */
+    private class ArchivePetsTask extends AsyncTask<Void, Void, Integer> {
+
+        private final ContentResolver mContentResolver = getContentResolver();
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            try {
+                Bundle result = mContentResolver.call(PetEntry.CONTENT_URI,
+                        PetContract.METHOD_ARCHIVE, null, null);
+                return result == null ? 0 : result.getInt(PetContract.EXTRA_COUNT);
+            } catch (SQLException e) {
+                // The batch was rolled back, so the pets are all still where they were
+                Log.e(LOG_TAG, "Archiving pets failed", e);
+                return null;
+            }
+        }
 
+        @Override
+        protected void onPostExecute(Integer archived) {
+            if (archived == null) {
+                Toast.makeText(CatalogActivity.this, R.string.archive_failed,
+                        Toast.LENGTH_SHORT).show();
+            } else {
+                Toast.makeText(CatalogActivity.this, getString(R.string.archived_pets, archived),
+                        Toast.LENGTH_SHORT).show();
+            }
+        }
     }
 
-    @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
+    /**
+     * Loads a large, reproducible set of test pets through the provider and reports how long
+     * it took.
+     */
+    private class GeneratePetsTask extends AsyncTask<Void, Void, Integer> {
+
+        private final ContentResolver mContentResolver = getContentResolver();
+        private long mElapsedMillis;
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            long start = SystemClock.elapsedRealtime();
+            int inserted = new PetDataGenerator(GENERATED_PET_SEED)
+                    .load(mContentResolver, GENERATED_PET_COUNT);
+            mElapsedMillis = SystemClock.elapsedRealtime() - start;
+            Log.i(LOG_TAG, "Generated " + inserted + " pets in " + mElapsedMillis + " ms");
+            return inserted;
+        }
 
+        @Override
+        protected void onPostExecute(Integer inserted) {
+            Toast.makeText(CatalogActivity.this,
+                    getString(R.string.generated_pets, inserted, mElapsedMillis),
+                    Toast.LENGTH_LONG).show();
+        }
     }
 }
@@ -16,7 +16,9 @@
 package com.example.android.pets;
 
 import android.content.ContentValues;
+import android.content.Intent;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.NavUtils;
 import android.support.v7.app.AppCompatActivity;
@@ -28,11 +30,17 @@ import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.Spinner;
 import android.widget.Toast;
 
 import com.example.android.pets.data.PetContract.PetEntry;
 import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetPhotoStore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
 
 /**
  * Allows user to create a new pet or edit an existing one.
@@ -41,6 +49,10 @@ public class EditorActivity extends AppCompatActivity {
 
     private static String LOG_TAG = EditorActivity.class.getSimpleName();
 
+    private static final int REQUEST_CHOOSE_PHOTO = 1;
+
+    private static final String STATE_PHOTO_PATH = "photo_path";
+
     /**
      * EditText field to enter the pet's name
      */
@@ -67,6 +79,18 @@ public class EditorActivity extends AppCompatActivity {
      */
     private int mGender = PetEntry.GENDER_UNKNOWN;
 
+    /**
+     * ImageView showing the pet's photo
+     */
+    private ImageView mPhotoImageView;
+
+    /**
+     * Path of the photo copied into the app for this pet, until the pet is saved
+     */
+    private String mPhotoPath;
+
+    private boolean mPetSaved;
+
     private PetDbHelper mDbHelper = new PetDbHelper(this);
     private String addPetMessage;
 
@@ -81,8 +105,96 @@ public class EditorActivity extends AppCompatActivity {
         mBreedEditText = (EditText) findViewById(R.id.edit_pet_breed);
         mWeightEditText = (EditText) findViewById(R.id.edit_pet_weight);
         mGenderSpinner = (Spinner) findViewById(R.id.spinner_gender);
+        mPhotoImageView = (ImageView) findViewById(R.id.edit_pet_photo);
 
         setupSpinner();
+
+        findViewById(R.id.button_choose_photo).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                intent.setType("image/*");
+                startActivityForResult(intent, REQUEST_CHOOSE_PHOTO);
+            }
+        });
+
+        if (savedInstanceState != null) {
+            showPhoto(savedInstanceState.getString(STATE_PHOTO_PATH));
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_PHOTO_PATH, mPhotoPath);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == REQUEST_CHOOSE_PHOTO && resultCode == RESULT_OK && data != null
+                && data.getData() != null) {
+            new ImportPhotoTask(data.getData()).execute();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        // A photo copied for a pet that was never saved belongs to nobody
+        if (isFinishing() && !mPetSaved && mPhotoPath != null) {
+            PetPhotoStore.deletePhotos(this, Collections.singletonList(mPhotoPath));
+        }
+        super.onDestroy();
+    }
+
+    private void showPhoto(String path) {
+        mPhotoPath = path;
+        PetPhotoLoader.getInstance(this).load(mPhotoImageView, path);
+    }
+
+    /**
+     * Copies the chosen image into the app's photo directory, off the main thread.
+     */
+    private class ImportPhotoTask extends AsyncTask<Void, Void, String> {
+
+        private final Uri mUri;
+
+        ImportPhotoTask(Uri uri) {
+            mUri = uri;
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            try {
+                InputStream in = getContentResolver().openInputStream(mUri);
+                if (in == null) {
+                    return null;
+                }
+                try {
+                    return PetPhotoStore.importPhoto(EditorActivity.this, in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException | SecurityException e) {
+                Log.w(LOG_TAG, "Cannot import photo " + mUri, e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String path) {
+            if (path == null) {
+                Toast.makeText(EditorActivity.this, R.string.photo_import_failed,
+                        Toast.LENGTH_SHORT).show();
+                return;
+            }
+            // The photo chosen before this one is not used by any pet
+            if (mPhotoPath != null) {
+                PetPhotoStore.deletePhotos(EditorActivity.this,
+                        Collections.singletonList(mPhotoPath));
+            }
+            showPhoto(path);
+        }
     }
 
     /**
@@ -154,6 +266,7 @@ public class EditorActivity extends AppCompatActivity {
         values.put(PetEntry.COLUMN_PET_BREED, breedString);
         values.put(PetEntry.COLUMN_PET_GENDER, genderInt);
         values.put(PetEntry.COLUMN_PET_WEIGHT, weightInt);
+        values.put(PetEntry.COLUMN_PET_PHOTO, mPhotoPath);
 
 
         Uri newUri = getContentResolver().insert(PetEntry.CONTENT_URI,  values);
@@ -163,6 +276,7 @@ public class EditorActivity extends AppCompatActivity {
             displayToast("Error with saving pet");
             Log.i (LOG_TAG,"Error with saving pet");
         } else {
+            mPetSaved = true;
             addPetMessage = "Pet saved successful";
             displayToast(addPetMessage);
             Log.i(LOG_TAG, "New row is " + newUri.toString());
@@ -0,0 +1,105 @@
+package com.example.android.pets;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.example.android.pets.data.Pet;
+import com.example.android.pets.data.PetList;
+
+/**
+ * {@link PetAdapter} is an adapter for a list or grid view
+ * that uses a {@link PetList} as its data source. This adapter knows
+ * how to create list items for each pet in the list.
+ */
+
+public class PetAdapter extends BaseAdapter {
+
+    private final LayoutInflater mInflater;
+    private final PetPhotoLoader mPhotoLoader;
+
+    private PetList mPets = new PetList(null);
+
+    /**
+     * Constructs a new, empty {@link PetAdapter}.
+     *
+     * @param context The context
+     */
+
+    public PetAdapter(Context context) {
+        mInflater = LayoutInflater.from(context);
+        mPhotoLoader = PetPhotoLoader.getInstance(context);
+    }
+
+    /**
+     * Shows a new list of pets and closes the one shown before. Pass null to show nothing, and
+     * do so before the adapter goes away, so the last list gets closed as well.
+     */
+    public void setPets(PetList pets) {
+        PetList previous = mPets;
+        mPets = pets != null ? pets : new PetList(null);
+        notifyDataSetChanged();
+        previous.close();
+    }
+
+    @Override
+    public int getCount() {
+        return mPets.size();
+    }
+
+    @Override
+    public Pet getItem(int position) {
+        return mPets.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mPets.getId(position);
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    /**
+     * Binds the pet at the given position to a list item, reusing the recycled item if there
+     * is one.
+     */
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        View view = convertView;
+        if (view == null) {
+            view = mInflater.inflate(R.layout.list_item, parent, false);
+            // Look the child views up once, not on every bind while scrolling
+            view.setTag(new ViewHolder(view));
+        }
+
+        ViewHolder holder = (ViewHolder) view.getTag();
+        Pet pet = mPets.get(position);
+        holder.name.setText(pet.name);
+        holder.summary.setText(pet.breed);
+        // Also cancels the load of the pet this recycled view showed before
+        mPhotoLoader.load(holder.photo, pet.photo);
+        return view;
+    }
+
+    /**
+     * Child views of a list item.
+     */
+    private static class ViewHolder {
+        final TextView name;
+        final TextView summary;
+        final ImageView photo;
+
+        ViewHolder(View view) {
+            name = (TextView) view.findViewById(R.id.name);
+            summary = (TextView) view.findViewById(R.id.summary);
+            photo = (ImageView) view.findViewById(R.id.photo);
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package com.example.android.pets;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads square thumbnails of pet photos into image views without blocking the main thread.
+ *
+ * Thumbnails are decoded on background threads, kept in a memory cache and written to a disk
+ * cache, so each photo is only scaled down once. All thumbnails have the same size, which lets
+ * bitmaps that are no longer cached or shown be reused for the next decode instead of being left
+ * to the garbage collector. Binding a view cancels whatever was still loading for it, and views
+ * are only held weakly, so nothing needs to be released when an activity goes away.
+ *
+ * Except for the decoding itself, everything happens on the main thread.
+ */
+public class PetPhotoLoader {
+
+    private static final String LOG_TAG = PetPhotoLoader.class.getSimpleName();
+
+    private static final String THUMBNAIL_DIRECTORY = "pet_thumbnails";
+
+    /** The disk cache is trimmed back to this size whenever it grows past it. */
+    private static final long MAX_DISK_CACHE_BYTES = 20 * 1024 * 1024;
+
+    private static final int MAX_POOLED_BITMAPS = 16;
+
+    private static final int DECODER_THREADS = 2;
+
+    private static final int JPEG_QUALITY = 85;
+
+    private static PetPhotoLoader sInstance;
+
+    private final int mThumbnailSize;
+    private final File mThumbnailDirectory;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor;
+    private final Paint mScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    /** Bitmaps that are neither cached nor shown, ready to decode into. Shared with decoders. */
+    private final ArrayDeque<Bitmap> mPool = new ArrayDeque<>();
+
+    /**
+     * The request each view shows or is waiting for. A bitmap is in use as long as the memory
+     * cache or the request of a live view holds it. Views that are garbage collected, e.g. those
+     * of a destroyed activity, drop out of this map by themselves and stop holding their bitmap.
+     */
+    private final WeakHashMap<ImageView, Request> mRequests = new WeakHashMap<>();
+
+    /** Size of the disk cache as of the last trim plus everything written since. */
+    private final AtomicLong mDiskCacheBytes = new AtomicLong();
+
+    /**
+     * Returns the loader shared by the whole app.
+     */
+    public static synchronized PetPhotoLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetPhotoLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PetPhotoLoader(Context context) {
+        mThumbnailSize = context.getResources().getDimensionPixelSize(R.dimen.list_item_photo_size);
+        mThumbnailDirectory = new File(context.getCacheDir(), THUMBNAIL_DIRECTORY);
+
+        // An eighth of the heap is enough for several screens of thumbnails
+        int maxBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+        mMemoryCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String path, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String path, Bitmap oldValue,
+                                        Bitmap newValue) {
+                if (!isShown(oldValue)) {
+                    recycle(oldValue);
+                }
+            }
+        };
+
+        mExecutor = Executors.newFixedThreadPool(DECODER_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Stay out of the way of the UI thread while scrolling
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, LOG_TAG);
+            }
+        });
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                trimDiskCache();
+            }
+        });
+    }
+
+    /**
+     * Shows the thumbnail of the photo at the given path in the view, or nothing if the path is
+     * null. Cancels any load still running for the view.
+     */
+    public void load(ImageView view, String path) {
+        Request previous = mRequests.remove(view);
+        if (previous != null) {
+            previous.cancel();
+        }
+
+        if (path == null) {
+            view.setImageDrawable(null);
+        } else {
+            Request request = new Request(path, view);
+            mRequests.put(view, request);
+
+            Bitmap cached = mMemoryCache.get(path);
+            if (cached != null) {
+                show(request, view, cached);
+            } else {
+                view.setImageDrawable(null);
+                request.mFuture = mExecutor.submit(request);
+            }
+        }
+
+        // Only now that the view shows something else can its old bitmap be reused
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    private void show(Request request, ImageView view, Bitmap bitmap) {
+        request.mBitmap = bitmap;
+        view.setImageBitmap(bitmap);
+    }
+
+    /**
+     * Called on the main thread once a thumbnail was decoded.
+     */
+    private void deliver(Request request, Bitmap bitmap) {
+        Bitmap cached = mMemoryCache.get(request.mPath);
+        if (cached == null) {
+            mMemoryCache.put(request.mPath, bitmap);
+        } else {
+            // Another request decoded the same photo first
+            recycle(bitmap);
+            bitmap = cached;
+        }
+
+        ImageView view = request.mView.get();
+        if (request.mCancelled || view == null || mRequests.get(view) != request) {
+            return;
+        }
+        show(request, view, bitmap);
+    }
+
+    /**
+     * Recycles the bitmap of a request the view no longer shows, unless the memory cache or
+     * another view still holds it.
+     */
+    private void release(Request request) {
+        Bitmap bitmap = request.mBitmap;
+        if (bitmap == null || mMemoryCache.get(request.mPath) == bitmap || isShown(bitmap)) {
+            return;
+        }
+        recycle(bitmap);
+    }
+
+    private boolean isShown(Bitmap bitmap) {
+        for (Request request : mRequests.values()) {
+            if (request.mBitmap == bitmap) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Puts a bitmap that nobody references any more back into the pool.
+     */
+    private void recycle(Bitmap bitmap) {
+        if (!bitmap.isMutable() || bitmap.getWidth() != mThumbnailSize
+                || bitmap.getHeight() != mThumbnailSize) {
+            return;
+        }
+        synchronized (mPool) {
+            if (mPool.size() < MAX_POOLED_BITMAPS) {
+                mPool.push(bitmap);
+            }
+        }
+    }
+
+    private Bitmap acquire() {
+        synchronized (mPool) {
+            Bitmap bitmap = mPool.poll();
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        return Bitmap.createBitmap(mThumbnailSize, mThumbnailSize, Bitmap.Config.RGB_565);
+    }
+
+    /**
+     * Returns the thumbnail of the photo from the disk cache, creating it if needed.
+     * Runs on a decoder thread.
+     */
+    private Bitmap loadThumbnail(String path) {
+        File photo = new File(path);
+        if (!photo.isFile()) {
+            return null;
+        }
+
+        // A changed photo gets a new name, so stale thumbnails are never read
+        File thumbnail = new File(mThumbnailDirectory, Integer.toHexString(path.hashCode())
+                + "_" + photo.length() + "_" + photo.lastModified() + ".jpg");
+        if (thumbnail.isFile()) {
+            Bitmap bitmap = decodeThumbnail(thumbnail);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+
+        Bitmap bitmap = createThumbnail(photo);
+        if (bitmap != null && writeThumbnail(bitmap, thumbnail)
+                && mDiskCacheBytes.addAndGet(thumbnail.length()) > MAX_DISK_CACHE_BYTES) {
+            trimDiskCache();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decodes a cached thumbnail into a pooled bitmap. The pooled bitmap goes back to the pool
+     * whenever it does not end up holding the thumbnail.
+     */
+    private Bitmap decodeThumbnail(File thumbnail) {
+        Bitmap reusable = acquire();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inMutable = true;
+        options.inSampleSize = 1;
+        options.inBitmap = reusable;
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapFactory.decodeFile(thumbnail.getPath(), options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap did not fit after all, decode into a new one
+            options.inBitmap = null;
+            recycle(reusable);
+            return BitmapFactory.decodeFile(thumbnail.getPath(), options);
+        } finally {
+            if (bitmap == null && options.inBitmap != null) {
+                // Unreadable file or any other failure: the pooled bitmap is still unused
+                recycle(reusable);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decodes the photo at the smallest power of two scale that still covers the thumbnail, then
+     * crops the center square into a pooled bitmap.
+     */
+    private Bitmap createThumbnail(File photo) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(photo.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.w(LOG_TAG, "Cannot decode photo " + photo);
+            return null;
+        }
+
+        int shortSide = Math.min(options.outWidth, options.outHeight);
+        int sampleSize = 1;
+        while (shortSide / (sampleSize * 2) >= mThumbnailSize) {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap decoded = BitmapFactory.decodeFile(photo.getPath(), options);
+        if (decoded == null) {
+            return null;
+        }
+
+        int side = Math.min(decoded.getWidth(), decoded.getHeight());
+        int left = (decoded.getWidth() - side) / 2;
+        int top = (decoded.getHeight() - side) / 2;
+
+        Bitmap thumbnail = acquire();
+        Canvas canvas = new Canvas(thumbnail);
+        canvas.drawBitmap(decoded, new Rect(left, top, left + side, top + side),
+                new Rect(0, 0, mThumbnailSize, mThumbnailSize), mScalePaint);
+        decoded.recycle();
+        return thumbnail;
+    }
+
+    /**
+     * @return true if the thumbnail was written
+     */
+    private boolean writeThumbnail(Bitmap bitmap, File thumbnail) {
+        if (!mThumbnailDirectory.isDirectory() && !mThumbnailDirectory.mkdirs()) {
+            return false;
+        }
+        File temp = new File(thumbnail.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            } finally {
+                out.close();
+            }
+            if (temp.renameTo(thumbnail)) {
+                return true;
+            }
+            temp.delete();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot write thumbnail " + thumbnail, e);
+            temp.delete();
+        }
+        return false;
+    }
+
+    /**
+     * Deletes the least recently written thumbnails until the disk cache fits its budget. Runs
+     * on a decoder thread when the loader is created and whenever a write takes the cache past
+     * its budget.
+     */
+    private synchronized void trimDiskCache() {
+        File[] files = mThumbnailDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= MAX_DISK_CACHE_BYTES) {
+            mDiskCacheBytes.set(size);
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+        });
+        for (File file : files) {
+            if (size <= MAX_DISK_CACHE_BYTES) {
+                break;
+            }
+            size -= file.length();
+            file.delete();
+        }
+        mDiskCacheBytes.set(size);
+    }
+
+    /**
+     * A thumbnail requested for a view.
+     */
+    private final class Request implements Runnable {
+
+        final String mPath;
+        final WeakReference<ImageView> mView;
+        volatile boolean mCancelled;
+        Future<?> mFuture;
+
+        /** The bitmap shown in the view for this request, once there is one. */
+        Bitmap mBitmap;
+
+        Request(String path, ImageView view) {
+            mPath = path;
+            mView = new WeakReference<>(view);
+        }
+
+        void cancel() {
+            mCancelled = true;
+            if (mFuture != null) {
+                mFuture.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            final Bitmap bitmap = loadThumbnail(mPath);
+            if (bitmap == null) {
+                return;
+            }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(Request.this, bitmap);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Immutable copy of one row of the pets table.
+ */
+public final class Pet {
+
+    /**
+     * The columns {@link #fromCursor(Cursor)} reads.
+     */
+    public static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_PHOTO
+    };
+
+    public final long id;
+    public final String name;
+    public final String breed;
+    public final int gender;
+    public final int weight;
+    public final String photo;
+
+    public Pet(long id, String name, String breed, int gender, int weight, String photo) {
+        this.id = id;
+        this.name = name;
+        this.breed = breed;
+        this.gender = gender;
+        this.weight = weight;
+        this.photo = photo;
+    }
+
+    /**
+     * Reads the pet at the current position of a cursor queried with {@link #PROJECTION}.
+     */
+    public static Pet fromCursor(Cursor cursor) {
+        return new Pet(
+                cursor.getLong(0),
+                cursor.getString(1),
+                cursor.getString(2),
+                cursor.getInt(3),
+                cursor.getInt(4),
+                cursor.getString(5));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Pet)) {
+            return false;
+        }
+        Pet other = (Pet) o;
+        return id == other.id
+                && gender == other.gender
+                && weight == other.weight
+                && equal(name, other.name)
+                && equal(breed, other.breed)
+                && equal(photo, other.photo);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (id ^ (id >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return id + " - " + name + " - " + breed + " - " + gender + " - " + weight;
+    }
+}
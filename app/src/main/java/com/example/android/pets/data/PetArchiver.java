@@ -0,0 +1,206 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetArchiveEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetWeightEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves pets that left the shelter long ago from the pets table into the archive database
+ * attached by {@link PetDbHelper}, together with their weight history and its rollups. This
+ * keeps the pets table, its indexes and the query cache down to the animals that are actually
+ * in the shelter, however many years of history pile up.
+ *
+ * Every batch is one transaction across both databases, so a pet is always in exactly one of
+ * them. Deleting the moved pets fires the usual triggers, which clean up their trigrams and
+ * weight history and record a delete in the change log. Photos are not archived: the archived
+ * copy has none, and the files are deleted once the batch is committed.
+ *
+ * Archived rows keep their ids. {@link PetDbHelper} keeps the id sequences of the live tables
+ * above the archive, so a pet in the pets table with an archived id is the same animal, brought
+ * back by restoring a backup taken before it was archived. As everywhere else, the copy in the
+ * pets table wins: archiving it again replaces the archived pet and its weight history.
+ */
+public class PetArchiver {
+
+    public static final String LOG_TAG = PetArchiver.class.getSimpleName();
+
+    /** Pets moved per transaction, so other writers only wait for a short while. */
+    private static final int BATCH_SIZE = 500;
+
+    /** Columns the pets table and the archive have in common. */
+    static final String PET_COLUMNS = PetEntry._ID + ", "
+            + PetEntry.COLUMN_PET_NAME + ", "
+            + PetEntry.COLUMN_PET_BREED + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.COLUMN_PET_WEIGHT + ", "
+            + PetEntry.COLUMN_PET_PHOTO + ", "
+            + PetEntry.COLUMN_PET_STATUS + ", "
+            + PetEntry.COLUMN_PET_STATUS_CHANGED;
+
+    private static final String ARCHIVE = PetDbHelper.ARCHIVE_SCHEMA + ".";
+
+    private static final String BATCH_TABLE = "temp.archive_batch";
+
+    /** The columns of {@link #PET_COLUMNS} as they are copied into the archive. */
+    private static final String ARCHIVED_PET_VALUES = PetEntry._ID + ", "
+            + PetEntry.COLUMN_PET_NAME + ", "
+            + PetEntry.COLUMN_PET_BREED + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.COLUMN_PET_WEIGHT + ", "
+            + "NULL, "
+            + PetEntry.COLUMN_PET_STATUS + ", "
+            + PetEntry.COLUMN_PET_STATUS_CHANGED;
+
+    private final Context mContext;
+    private final PetDbHelper mDbHelper;
+
+    public PetArchiver(Context context, PetDbHelper dbHelper) {
+        mContext = context;
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Archives every pet that is no longer available and whose status changed before the
+     * cutoff.
+     *
+     * @param cutoff milliseconds since the epoch
+     * @return the number of archived pets
+     */
+    public int archive(long cutoff) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int archived = 0;
+        List<String> photos = new ArrayList<>();
+        while (true) {
+            photos.clear();
+            int moved = archiveBatch(database, cutoff, photos);
+            if (moved == 0) {
+                break;
+            }
+            PetPhotoStore.deletePhotos(mContext, photos);
+            archived += moved;
+        }
+        if (archived > 0) {
+            Log.i(LOG_TAG, "Archived " + archived + " pets");
+        }
+        return archived;
+    }
+
+    /**
+     * Moves one batch of pets and adds the paths of their photos to the given list.
+     */
+    private static int archiveBatch(SQLiteDatabase database, long cutoff, List<String> photos) {
+        database.beginTransaction();
+        try {
+            // Pin the batch down first, so every copy below and the delete see the same pets.
+            // Every status but available is greater, so the (status, status_changed) index
+            // skips the pets in the shelter.
+            database.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + BATCH_TABLE
+                    + " (id INTEGER PRIMARY KEY);");
+            database.execSQL("DELETE FROM " + BATCH_TABLE + ";");
+            database.execSQL("INSERT INTO " + BATCH_TABLE + " (id) SELECT " + PetEntry._ID
+                    + " FROM main." + PetEntry.TABLE_NAME
+                    + " WHERE " + PetEntry.COLUMN_PET_STATUS + " > " + PetEntry.STATUS_AVAILABLE
+                    + " AND " + PetEntry.COLUMN_PET_STATUS_CHANGED + " < ?"
+                    + " LIMIT " + BATCH_SIZE + ";", new Object[]{cutoff});
+
+            int count = (int) DatabaseUtils.queryNumEntries(database, BATCH_TABLE);
+            if (count == 0) {
+                database.setTransactionSuccessful();
+                return 0;
+            }
+
+            String inBatch = " IN (SELECT id FROM " + BATCH_TABLE + ")";
+
+            Cursor cursor = database.rawQuery("SELECT " + PetEntry.COLUMN_PET_PHOTO
+                    + " FROM main." + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + inBatch
+                    + " AND " + PetEntry.COLUMN_PET_PHOTO + " IS NOT NULL", null);
+            try {
+                while (cursor.moveToNext()) {
+                    photos.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            // Drop what the archive still holds of restored pets, so the plain inserts below only
+            // fail on ids that really belong to another pet
+            deleteArchived(database, PetWeightEntry.TABLE_NAME, PetWeightEntry.COLUMN_PET_ID,
+                    inBatch);
+            deleteArchived(database, PetWeightEntry.DAILY_TABLE_NAME,
+                    PetWeightEntry.COLUMN_PET_ID, inBatch);
+            deleteArchived(database, PetWeightEntry.WEEKLY_TABLE_NAME,
+                    PetWeightEntry.COLUMN_PET_ID, inBatch);
+            int replaced = deleteArchived(database, PetArchiveEntry.TABLE_NAME, PetEntry._ID,
+                    inBatch);
+            if (replaced > 0) {
+                Log.i(LOG_TAG, "Replacing " + replaced + " archived pets with restored copies");
+            }
+
+            database.execSQL("INSERT INTO " + ARCHIVE + PetArchiveEntry.TABLE_NAME
+                    + " (" + PET_COLUMNS + ", " + PetArchiveEntry.COLUMN_ARCHIVED + ") SELECT "
+                    + ARCHIVED_PET_VALUES + ", ? FROM main." + PetEntry.TABLE_NAME
+                    + " WHERE " + PetEntry._ID + inBatch + ";",
+                    new Object[]{System.currentTimeMillis()});
+            copyByPet(database, PetWeightEntry.TABLE_NAME, PetWeightEntry._ID + ", "
+                    + PetWeightEntry.COLUMN_PET_ID + ", " + PetWeightEntry.COLUMN_TIMESTAMP + ", "
+                    + PetWeightEntry.COLUMN_WEIGHT, inBatch);
+            String rollupColumns = PetWeightEntry.COLUMN_PET_ID + ", "
+                    + PetWeightEntry.COLUMN_BUCKET + ", "
+                    + PetWeightEntry.COLUMN_READING_COUNT + ", "
+                    + PetWeightEntry.COLUMN_WEIGHT_SUM + ", "
+                    + PetWeightEntry.COLUMN_MIN_WEIGHT + ", "
+                    + PetWeightEntry.COLUMN_MAX_WEIGHT;
+            copyByPet(database, PetWeightEntry.DAILY_TABLE_NAME, rollupColumns, inBatch);
+            copyByPet(database, PetWeightEntry.WEEKLY_TABLE_NAME, rollupColumns, inBatch);
+
+            // The delete triggers take the trigrams, history and rollups along
+            database.execSQL("DELETE FROM main." + PetEntry.TABLE_NAME
+                    + " WHERE " + PetEntry._ID + inBatch + ";");
+
+            database.setTransactionSuccessful();
+            return count;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes the rows of the archive table whose id column is in the batch.
+     *
+     * @return the number of rows deleted
+     */
+    private static int deleteArchived(SQLiteDatabase database, String table, String idColumn,
+                                      String inBatch) {
+        return database.delete(ARCHIVE + table, idColumn + inBatch, null);
+    }
+
+    private static void copyByPet(SQLiteDatabase database, String table, String columns,
+                                  String inBatch) {
+        database.execSQL("INSERT INTO " + ARCHIVE + table + " (" + columns + ") SELECT "
+                + columns + " FROM main." + table
+                + " WHERE " + PetWeightEntry.COLUMN_PET_ID + inBatch + ";");
+    }
+
+    /**
+     * Whether the archive holds a pet with the given id.
+     */
+    static boolean isArchived(SQLiteDatabase database, long petId) {
+        Cursor cursor = database.query(ARCHIVE + PetArchiveEntry.TABLE_NAME,
+                new String[]{PetEntry._ID}, PetEntry._ID + "=?",
+                new String[]{String.valueOf(petId)}, null, null, null);
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Reads and maintains the change log of the pets table. The log itself is written by the
+ * triggers created in {@link PetDbHelper}; this class answers "what changed since N" and
+ * keeps the log bounded.
+ */
+public class PetChangeLog {
+
+    public static final String LOG_TAG = PetChangeLog.class.getSimpleName();
+
+    /** Maximum number of rows kept in the log after compaction. */
+    private static final int MAX_RETAINED_CHANGES = 10000;
+
+    /** Rows the log may grow past {@link #MAX_RETAINED_CHANGES} before it is compacted. */
+    private static final int COMPACTION_SLACK = 1000;
+
+    /** Number of changed rows after which the size of the log is checked again. */
+    private static final int CHECK_INTERVAL = 100;
+
+    /**
+     * Latest change of every pet modified after a given sequence number, together with the
+     * current values of the pet. Deleted pets come back with null values.
+     */
+    private static final String SQL_CHANGES_SINCE = "SELECT "
+            + "c." + PetChangeEntry._ID + " AS " + PetChangeEntry._ID + ", "
+            + "c." + PetChangeEntry.COLUMN_PET_ID + " AS " + PetChangeEntry.COLUMN_PET_ID + ", "
+            + "c." + PetChangeEntry.COLUMN_OPERATION + " AS " + PetChangeEntry.COLUMN_OPERATION + ", "
+            + "p." + PetEntry.COLUMN_PET_NAME + " AS " + PetEntry.COLUMN_PET_NAME + ", "
+            + "p." + PetEntry.COLUMN_PET_BREED + " AS " + PetEntry.COLUMN_PET_BREED + ", "
+            + "p." + PetEntry.COLUMN_PET_GENDER + " AS " + PetEntry.COLUMN_PET_GENDER + ", "
+            + "p." + PetEntry.COLUMN_PET_WEIGHT + " AS " + PetEntry.COLUMN_PET_WEIGHT + ", "
+            + "p." + PetEntry.COLUMN_PET_PHOTO + " AS " + PetEntry.COLUMN_PET_PHOTO + ", "
+            + "p." + PetEntry.COLUMN_PET_STATUS + " AS " + PetEntry.COLUMN_PET_STATUS
+            + " FROM " + PetChangeEntry.TABLE_NAME + " c LEFT JOIN " + PetEntry.TABLE_NAME + " p"
+            + " ON p." + PetEntry._ID + " = c." + PetChangeEntry.COLUMN_PET_ID
+            + " WHERE c." + PetChangeEntry._ID + " IN (SELECT MAX(" + PetChangeEntry._ID + ") FROM "
+            + PetChangeEntry.TABLE_NAME + " WHERE " + PetChangeEntry._ID + " > ? GROUP BY "
+            + PetChangeEntry.COLUMN_PET_ID + ")";
+
+    private final PetDbHelper mDbHelper;
+
+    /** Zero at first, so the first write of every process checks the log. */
+    private int mChangesSinceCheck;
+    private boolean mChecked;
+
+    public PetChangeLog(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Returns the latest change of every pet modified after the given sequence number. The
+     * projection, selection and sort order apply to the columns of {@link PetChangeEntry} plus
+     * the pet columns of {@link PetEntry}; the default order is by sequence number.
+     *
+     * If changes after {@code since} have already been dropped by log retention, a single
+     * {@link PetChangeEntry#OPERATION_RESYNC} row is returned instead. Its {@code _id} is the
+     * sequence number to continue from once the client has re-read the pets table.
+     */
+    public Cursor queryChangesSince(long since, String[] projection, String selection,
+                                    String[] selectionArgs, String sortOrder) {
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+
+        long horizon = readHorizon(database);
+        if (since < horizon) {
+            MatrixCursor cursor = new MatrixCursor(new String[]{
+                    PetChangeEntry._ID,
+                    PetChangeEntry.COLUMN_PET_ID,
+                    PetChangeEntry.COLUMN_OPERATION});
+            cursor.addRow(new Object[]{readLatestSequence(database), null,
+                    PetChangeEntry.OPERATION_RESYNC});
+            return cursor;
+        }
+
+        // The "?" of the sub query comes first in the statement, so "since" is bound first
+        String[] args;
+        if (selectionArgs == null) {
+            args = new String[]{String.valueOf(since)};
+        } else {
+            args = new String[selectionArgs.length + 1];
+            args[0] = String.valueOf(since);
+            System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+        }
+
+        if (sortOrder == null) {
+            sortOrder = PetChangeEntry._ID;
+        }
+
+        return database.query("(" + SQL_CHANGES_SINCE + ")", projection, selection, args,
+                null, null, sortOrder);
+    }
+
+    /**
+     * Called by the provider after rows of the pets table were written. Checks the size of the
+     * log on the first write of the process and every {@link #CHECK_INTERVAL} changed rows
+     * after that, and compacts it once it holds more than {@link #MAX_RETAINED_CHANGES} plus
+     * {@link #COMPACTION_SLACK} rows. The decision rests on the rows in the database, so a log
+     * written by many short sessions is compacted just like one written in a single session.
+     */
+    public void onRowsChanged(int count) {
+        if (count <= 0) {
+            return;
+        }
+
+        synchronized (this) {
+            mChangesSinceCheck += count;
+            if (mChecked && mChangesSinceCheck < CHECK_INTERVAL) {
+                return;
+            }
+            mChecked = true;
+            mChangesSinceCheck = 0;
+        }
+
+        long rows = DatabaseUtils.queryNumEntries(mDbHelper.getReadableDatabase(),
+                PetChangeEntry.TABLE_NAME);
+        if (rows > MAX_RETAINED_CHANGES + COMPACTION_SLACK) {
+            compact();
+        }
+    }
+
+    /**
+     * Drops every change that is superseded by a later change of the same pet, then trims the
+     * oldest changes so that at most {@link #MAX_RETAINED_CHANGES} remain. Trimming moves the
+     * horizon so that clients asking for older changes are told to resync.
+     */
+    public void compact() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        database.beginTransaction();
+        try {
+            int superseded = database.delete(PetChangeEntry.TABLE_NAME,
+                    PetChangeEntry._ID + " NOT IN (SELECT MAX(" + PetChangeEntry._ID + ") FROM "
+                            + PetChangeEntry.TABLE_NAME + " GROUP BY "
+                            + PetChangeEntry.COLUMN_PET_ID + ")",
+                    null);
+
+            int trimmed = 0;
+            Cursor cursor = database.query(PetChangeEntry.TABLE_NAME,
+                    new String[]{PetChangeEntry._ID}, null, null, null, null,
+                    PetChangeEntry._ID + " DESC", MAX_RETAINED_CHANGES + ",1");
+            try {
+                if (cursor.moveToFirst()) {
+                    long cutoff = cursor.getLong(0);
+                    database.execSQL("UPDATE " + PetChangeEntry.HORIZON_TABLE_NAME
+                            + " SET seq = ?", new Object[]{cutoff});
+                    trimmed = database.delete(PetChangeEntry.TABLE_NAME,
+                            PetChangeEntry._ID + " <= ?", new String[]{String.valueOf(cutoff)});
+                }
+            } finally {
+                cursor.close();
+            }
+
+            database.setTransactionSuccessful();
+            Log.i(LOG_TAG, "Compacted change log: " + superseded + " superseded, "
+                    + trimmed + " trimmed");
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the highest sequence number handed out so far, or the horizon if the log is empty.
+     */
+    public long getLatestSequence() {
+        return readLatestSequence(mDbHelper.getReadableDatabase());
+    }
+
+    static long readHorizon(SQLiteDatabase database) {
+        return DatabaseUtils.longForQuery(database,
+                "SELECT seq FROM " + PetChangeEntry.HORIZON_TABLE_NAME, null);
+    }
+
+    static long readLatestSequence(SQLiteDatabase database) {
+        return Math.max(readHorizon(database), DatabaseUtils.longForQuery(database,
+                "SELECT IFNULL(MAX(" + PetChangeEntry._ID + "), 0) FROM " + PetChangeEntry.TABLE_NAME,
+                null));
+    }
+}
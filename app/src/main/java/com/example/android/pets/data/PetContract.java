@@ -14,9 +14,87 @@ public final class PetContract {
     //Constants to access
     public static final String CONTENT_AUTHORITY = "com.example.android.pets";
     public static final String PATH_PETS = "pets";
+    public static final String PATH_CHANGES = "changes";
+    public static final String PATH_DUPLICATES = "duplicates";
+    public static final String PATH_WEIGHTS = "weights";
+    public static final String PATH_ARCHIVE = "archive";
 
     public static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
 
+    /*
+    Methods for ContentResolver.call(BASE_CONTENT_URI, method, arg, extras)
+     */
+
+    /**
+     * Writes a consistent snapshot of the database to the file path given as arg while reads
+     * and writes continue. Blocks until the snapshot is complete, so call it off the main thread.
+     * The result holds the change sequence the snapshot is consistent with under
+     * {@link #EXTRA_SEQUENCE}.
+     */
+    public static final String METHOD_BACKUP = "backup";
+
+    /**
+     * Replaces the database with the snapshot at the file path given as arg and reopens it.
+     * Waits for the operations in flight and holds off new ones while the file is swapped.
+     * Afterwards every client of {@link PetChangeEntry#CONTENT_URI} is told to resync.
+     */
+    public static final String METHOD_RESTORE = "restore";
+
+    public static final String EXTRA_SEQUENCE = "sequence";
+
+    /**
+     * Checks a batch of pets, passed as an ArrayList of ContentValues under {@link #EXTRA_PETS},
+     * for likely duplicates among the stored pets and within the batch. The result lists one
+     * candidate per array position: {@link #EXTRA_ENTRY} is the index of the checked entry,
+     * {@link #EXTRA_PET_ID} the id of the stored pet (or -1), {@link #EXTRA_BATCH_INDEX} the index
+     * of the other batch entry (or -1) and {@link #EXTRA_SCORE} the similarity between 0 and 1.
+     */
+    public static final String METHOD_FIND_DUPLICATES = "find_duplicates";
+
+    public static final String EXTRA_PETS = "pets";
+    public static final String EXTRA_ENTRY = "entry";
+    public static final String EXTRA_PET_ID = "pet_id";
+    public static final String EXTRA_BATCH_INDEX = "batch_index";
+    public static final String EXTRA_SCORE = "score";
+
+    /**
+     * Moves pets that left the shelter (see {@link PetEntry#COLUMN_PET_STATUS}) more than the
+     * number of days given as arg ago into the archive database, together with their weight
+     * history. Without arg, pets that left more than {@link #DEFAULT_ARCHIVE_AFTER_DAYS} days
+     * ago are moved. Runs in small batches, so call it off the main thread. The result holds the
+     * number of archived pets under {@link #EXTRA_COUNT}.
+     */
+    public static final String METHOD_ARCHIVE = "archive";
+
+    public static final int DEFAULT_ARCHIVE_AFTER_DAYS = 90;
+
+    public static final String EXTRA_COUNT = "count";
+
+    /**
+     * Builds the duplicate check index and starts the weight history of every pet that was
+     * bulk inserted through {@link PetEntry#buildBulkLoadUri()}. Call it once when the whole
+     * load is done. The result holds the number of pets indexed under {@link #EXTRA_COUNT}.
+     */
+    public static final String METHOD_FINISH_BULK_LOAD = "finish_bulk_load";
+
+    /**
+     * Turns query plan tracing on (arg "true" or no arg) or off (arg "false"). While it is on,
+     * the provider explains every new shape of query, update and delete on the pets once and
+     * counts how often each shape runs, from which URIs and from which call sites. Turning it
+     * on clears what was traced before. Meant for debugging, it slows down every statement a
+     * little.
+     */
+    public static final String METHOD_TRACE_QUERY_PLANS = "trace_query_plans";
+
+    /**
+     * Returns the traced statement shapes under {@link #EXTRA_REPORT} as text, most executed
+     * first. Shapes that scan a whole table or sort in a temporary B-tree are marked. With arg
+     * "true" only those are listed.
+     */
+    public static final String METHOD_QUERY_PLAN_REPORT = "query_plan_report";
+
+    public static final String EXTRA_REPORT = "report";
+
 
     public static abstract class PetEntry implements BaseColumns{
 
@@ -24,12 +102,45 @@ public final class PetContract {
 
         public static final String TABLE_NAME = "pets";
 
+        /**
+         * Query {@link #CONTENT_URI} with this parameter to get only the pets whose name or breed
+         * starts with the given text, ignoring case.
+         */
+        public static final String QUERY_PARAMETER_FILTER = "filter";
+
+        /**
+         * Query {@link #CONTENT_URI} with this parameter set to "true" to get the archived pets
+         * too, see {@link PetArchiveEntry}.
+         */
+        public static final String QUERY_PARAMETER_INCLUDE_ARCHIVED = "include_archived";
+
+        /**
+         * Bulk insert into {@link #CONTENT_URI} with this parameter set to "true" to leave out
+         * the duplicate check index and the weight history, which are cheaper to build for the
+         * whole load at once with {@link PetContract#METHOD_FINISH_BULK_LOAD}. Until then the
+         * new pets are not found by the duplicate check and have no readings.
+         */
+        public static final String QUERY_PARAMETER_BULK_LOAD = "bulk_load";
+
         public static final String _ID = BaseColumns._ID;
         public static final String COLUMN_PET_NAME = "name";
         public static final String COLUMN_PET_BREED = "breed";
         public static final String COLUMN_PET_GENDER = "gender";
         public static final String COLUMN_PET_WEIGHT = "weight";
 
+        /**
+         * Absolute path of the pet's photo, or null if the pet has none. The image itself is
+         * stored as a file outside of the database, see {@link PetPhotoStore}. Every pet owns
+         * its file: it is deleted when the pet is deleted or archived, or gets another photo.
+         */
+        public static final String COLUMN_PET_PHOTO = "photo";
+
+        /** Whether the pet is still in the shelter. Defaults to {@link #STATUS_AVAILABLE}. */
+        public static final String COLUMN_PET_STATUS = "status";
+
+        /** When the status last changed, in milliseconds since the epoch. Set by the provider. */
+        public static final String COLUMN_PET_STATUS_CHANGED = "status_changed";
+
         /*
         Possible values for the style of the gender
          */
@@ -38,6 +149,42 @@ public final class PetContract {
         public static final int GENDER_MALE = 1;
         public static final int GENDER_FEMALE = 2;
 
+        /*
+        Possible values for the status. Pets that are no longer available are archived after a
+        while.
+         */
+
+        public static final int STATUS_AVAILABLE = 0;
+        public static final int STATUS_ADOPTED = 1;
+
+        /**
+         * Builds the URI for the pets whose name or breed starts with the given text.
+         */
+        public static Uri buildFilterUri(String prefix) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_FILTER, prefix)
+                    .build();
+        }
+
+        /**
+         * Builds the URI for all pets, whether they are still in the shelter or archived.
+         */
+        public static Uri buildIncludingArchivedUri() {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_INCLUDE_ARCHIVED, "true")
+                    .build();
+        }
+
+        /**
+         * Builds the URI for bulk inserts that defer the derived tables, see
+         * {@link #QUERY_PARAMETER_BULK_LOAD}.
+         */
+        public static Uri buildBulkLoadUri() {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_BULK_LOAD, "true")
+                    .build();
+        }
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of pets.
          */
@@ -53,5 +200,236 @@ public final class PetContract {
 
 
 
+    }
+
+    /**
+     * Pets that left the shelter long ago, kept in a separate database file so the pets table
+     * only holds the animals that matter day to day. Rows have the columns of {@link PetEntry}
+     * plus {@link #COLUMN_ARCHIVED}; they are read only. Archived pets keep their id, and
+     * "content://com.example.android.pets/pets/3/weights" still returns their weight history.
+     */
+    public static abstract class PetArchiveEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_ARCHIVE);
+
+        public static final String TABLE_NAME = "pets";
+
+        public static final String _ID = BaseColumns._ID;
+
+        /** When the pet was archived, in milliseconds since the epoch. */
+        public static final String COLUMN_ARCHIVED = "archived";
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of archived pets.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS
+                        + "/" + PATH_ARCHIVE;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single archived pet.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS
+                        + "/" + PATH_ARCHIVE;
+    }
+
+    /**
+     * Change log of the pets table. Every insert, update and delete on {@link PetEntry#TABLE_NAME}
+     * appends a row here (via triggers created in {@link PetDbHelper}), so a sync client can ask
+     * for everything that changed since the last sequence number it has seen.
+     */
+    public static abstract class PetChangeEntry implements BaseColumns {
+
+        /**
+         * Query {@link #CONTENT_URI} with {@link #QUERY_PARAMETER_SINCE} to get the latest change
+         * of every pet modified after the given sequence number, e.g.
+         * "content://com.example.android.pets/pets/changes?since=42".
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_CHANGES);
+
+        public static final String QUERY_PARAMETER_SINCE = "since";
+
+        public static final String TABLE_NAME = "pet_changes";
+
+        /** Single row table holding the highest sequence number dropped by log retention. */
+        public static final String HORIZON_TABLE_NAME = "pet_changes_horizon";
+
+        /** The sequence number of the change. It only ever grows. */
+        public static final String _ID = BaseColumns._ID;
+        public static final String COLUMN_PET_ID = "pet_id";
+        public static final String COLUMN_OPERATION = "operation";
+
+        /*
+        Possible values for the operation of a change
+         */
+
+        /**
+         * Returned as the only row when the requested sequence number is older than the
+         * retained log. The client has to re-read the whole pets table.
+         */
+        public static final int OPERATION_RESYNC = 0;
+        public static final int OPERATION_INSERT = 1;
+        public static final int OPERATION_UPDATE = 2;
+        public static final int OPERATION_DELETE = 3;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of changes.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS
+                        + "/" + PATH_CHANGES;
+
+        /**
+         * Builds the URI that returns the changes made after the given sequence number.
+         */
+        public static Uri buildChangesSinceUri(long since) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SINCE, String.valueOf(since))
+                    .build();
+        }
+    }
+
+    /**
+     * Trigram index over the name and breed of every pet, used to find likely duplicates.
+     * Maintained by {@link PetProvider}; not exposed through a content URI.
+     */
+    public static abstract class PetTrigramEntry {
+
+        public static final String TABLE_NAME = "pet_trigrams";
+
+        public static final String COLUMN_TRIGRAM = "trigram";
+        public static final String COLUMN_PET_ID = "pet_id";
+
+        /**
+         * Number of pets per trigram, kept in step with {@link #TABLE_NAME} by triggers. Holds
+         * {@link #COLUMN_TRIGRAM} and {@link #COLUMN_PET_COUNT}.
+         */
+        public static final String COUNTS_TABLE_NAME = "pet_trigram_counts";
+
+        public static final String COLUMN_PET_COUNT = "pets";
+    }
+
+    /**
+     * Likely duplicates of a pet that is about to be registered, best match first, e.g.
+     * "content://com.example.android.pets/pets/duplicates?name=Toto&amp;breed=Terrier&amp;gender=1&amp;weight=7".
+     * The query parameters are named after the {@link PetEntry} columns; only the name is
+     * required. Rows hold {@link #_ID} of the stored pet, its name, breed and {@link #COLUMN_SCORE}.
+     */
+    public static abstract class PetDuplicateEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_DUPLICATES);
+
+        public static final String _ID = BaseColumns._ID;
+
+        /** Similarity between 0 and 1. */
+        public static final String COLUMN_SCORE = "score";
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of duplicates.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS
+                        + "/" + PATH_DUPLICATES;
+
+        /**
+         * Builds the URI for the likely duplicates of the described pet.
+         *
+         * @param breed  may be null
+         * @param weight may be null
+         */
+        public static Uri buildQueryUri(String name, String breed, int gender, Integer weight) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(PetEntry.COLUMN_PET_NAME, name)
+                    .appendQueryParameter(PetEntry.COLUMN_PET_GENDER, String.valueOf(gender));
+            if (breed != null) {
+                builder.appendQueryParameter(PetEntry.COLUMN_PET_BREED, breed);
+            }
+            if (weight != null) {
+                builder.appendQueryParameter(PetEntry.COLUMN_PET_WEIGHT, String.valueOf(weight));
+            }
+            return builder.build();
+        }
+    }
+
+    /**
+     * Weight readings of one pet, e.g. "content://com.example.android.pets/pets/3/weights".
+     * Readings are only ever appended, with insert or bulkInsert of {@link #COLUMN_WEIGHT} and
+     * {@link #COLUMN_TIMESTAMP} (now if missing); the current weight of the pet follows its latest
+     * reading. A query returns the series between {@link #QUERY_PARAMETER_FROM} (inclusive) and
+     * {@link #QUERY_PARAMETER_TO} (exclusive) at the given {@link #QUERY_PARAMETER_RESOLUTION}.
+     * Every row holds {@link #COLUMN_TIMESTAMP}, {@link #COLUMN_READING_COUNT},
+     * {@link #COLUMN_MIN_WEIGHT}, {@link #COLUMN_MAX_WEIGHT} and {@link #COLUMN_AVG_WEIGHT}.
+     */
+    public static abstract class PetWeightEntry implements BaseColumns {
+
+        /** Append-only table of every reading, keyed by pet id and timestamp. */
+        public static final String TABLE_NAME = "weight_history";
+
+        /** Rollups of the readings per pet and day or week, kept up to date by a trigger. */
+        public static final String DAILY_TABLE_NAME = "weight_daily";
+        public static final String WEEKLY_TABLE_NAME = "weight_weekly";
+
+        public static final String QUERY_PARAMETER_RESOLUTION = "resolution";
+        public static final String QUERY_PARAMETER_FROM = "from";
+        public static final String QUERY_PARAMETER_TO = "to";
+
+        /*
+        Possible values for the resolution of a series. Days and weeks are in UTC, weeks start
+        on Monday.
+         */
+
+        public static final String RESOLUTION_RAW = "raw";
+        public static final String RESOLUTION_DAY = "day";
+        public static final String RESOLUTION_WEEK = "week";
+
+        public static final String _ID = BaseColumns._ID;
+        public static final String COLUMN_PET_ID = "pet_id";
+
+        /** Milliseconds since the epoch; the start of the day or week in a rollup series. */
+        public static final String COLUMN_TIMESTAMP = "timestamp";
+        public static final String COLUMN_WEIGHT = "weight";
+
+        /*
+        Columns of the rollup tables
+         */
+
+        public static final String COLUMN_BUCKET = "bucket";
+        public static final String COLUMN_READING_COUNT = "reading_count";
+        public static final String COLUMN_WEIGHT_SUM = "weight_sum";
+        public static final String COLUMN_MIN_WEIGHT = "min_weight";
+        public static final String COLUMN_MAX_WEIGHT = "max_weight";
+
+        /** Only in query results, computed from the sum and count. */
+        public static final String COLUMN_AVG_WEIGHT = "avg_weight";
+
+        /**
+         * The MIME type of a weights URI for a series of readings.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS
+                        + "/" + PATH_WEIGHTS;
+
+        /**
+         * Builds the URI of the weight readings of the given pet.
+         */
+        public static Uri buildWeightsUri(long petId) {
+            return PetEntry.CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(petId))
+                    .appendPath(PATH_WEIGHTS)
+                    .build();
+        }
+
+        /**
+         * Builds the URI of the series of the given pet between {@code from} (inclusive) and
+         * {@code to} (exclusive), in milliseconds since the epoch.
+         */
+        public static Uri buildSeriesUri(long petId, String resolution, long from, long to) {
+            return buildWeightsUri(petId).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_RESOLUTION, resolution)
+                    .appendQueryParameter(QUERY_PARAMETER_FROM, String.valueOf(from))
+                    .appendQueryParameter(QUERY_PARAMETER_TO, String.valueOf(to))
+                    .build();
+        }
     }
 }
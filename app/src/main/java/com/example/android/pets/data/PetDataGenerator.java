@@ -0,0 +1,223 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates any number of made-up pets for performance work. The same seed always yields the
+ * same pets, so a slow query found on one device can be reproduced on another.
+ *
+ * Names and breeds follow a Zipf distribution like real shelter data: a few names and breeds
+ * are very common, and a long tail of cross breeds shows up only now and then. Weights depend on
+ * the size of the breed. {@link #next()} is plain Java and can be used from JVM tests and
+ * benchmarks; {@link #load(ContentResolver, int)} writes through {@link PetProvider} in large
+ * bulk inserts. All the math goes through {@link StrictMath}, so a seed yields the same pets on
+ * every device and JVM.
+ */
+public final class PetDataGenerator {
+
+    /** Pets per bulk insert, each of which is one transaction in the provider. */
+    public static final int BATCH_SIZE = 5000;
+
+    private static final String[] NAMES = {
+            "Bella", "Max", "Luna", "Charlie", "Lucy", "Cooper", "Daisy", "Milo", "Bailey",
+            "Buddy", "Lola", "Rocky", "Sadie", "Bear", "Molly", "Tucker", "Stella", "Duke",
+            "Chloe", "Oliver", "Sophie", "Leo", "Penny", "Jack", "Zoe", "Toby", "Maggie",
+            "Bentley", "Lily", "Zeus", "Roxy", "Winston", "Coco", "Oscar", "Gracie", "Teddy",
+            "Ruby", "Simba", "Rosie", "Louie", "Nala", "Murphy", "Willow", "Finn", "Pepper",
+            "Jasper", "Ginger", "Bruno", "Kiki", "Toto", "Mittens", "Shadow", "Smokey", "Tiger",
+            "Oreo", "Pumpkin", "Biscuit", "Nova", "Hazel", "Ziggy", "Marley", "Sasha", "Ollie",
+            "Rusty", "Peanut", "Misty", "Gizmo", "Bandit", "Scout", "Harley"
+    };
+
+    /** Breeds by popularity, with their typical weight in kilos. */
+    private static final String[] BREEDS = {
+            "Labrador Retriever", "Domestic Shorthair", "German Shepherd", "Golden Retriever",
+            "French Bulldog", "Domestic Longhair", "Beagle", "Poodle", "Bulldog", "Siamese",
+            "Rottweiler", "Dachshund", "Yorkshire Terrier", "Maine Coon", "Boxer", "Chihuahua",
+            "Shih Tzu", "Persian", "Siberian Husky", "Pug", "Border Collie", "Ragdoll",
+            "Great Dane", "Cocker Spaniel", "Bengal", "Doberman Pinscher", "Pit Bull Terrier",
+            "Jack Russell Terrier", "Sphynx", "Bernese Mountain Dog", "Maltese", "Greyhound",
+            "British Shorthair", "Australian Shepherd", "Newfoundland", "Whippet", "Havanese",
+            "Mastiff", "Scottish Fold", "Saint Bernard"
+    };
+
+    private static final int[] BREED_WEIGHTS = {
+            32, 4, 35, 30,
+            12, 5, 10, 20, 23, 4,
+            50, 9, 3, 7, 30, 2,
+            6, 5, 23, 8, 18, 7,
+            60, 13, 5, 38, 27,
+            7, 4, 45, 3, 30,
+            5, 25, 65, 12, 5,
+            75, 4, 75
+    };
+
+    /** Share of pets registered without a breed. */
+    private static final double NO_BREED = 0.05;
+
+    /** Share of pets of unknown gender; the rest is split evenly. */
+    private static final double UNKNOWN_GENDER = 0.06;
+
+    /** Spread of the weight around the breed's typical weight, as a log-normal sigma. */
+    private static final double WEIGHT_SIGMA = 0.25;
+
+    private static final int MAX_WEIGHT = 120;
+
+    /** Breed names including the long tail of crosses, most popular first. */
+    private static final String[] ALL_BREEDS;
+    private static final int[] ALL_BREED_WEIGHTS;
+
+    static {
+        List<String> breeds = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        for (int i = 0; i < BREEDS.length; i++) {
+            breeds.add(BREEDS[i]);
+            weights.add(BREED_WEIGHTS[i]);
+        }
+        // Crosses of popular breeds are more likely than crosses of rare ones
+        for (int sum = 1; sum < 2 * BREEDS.length - 2; sum++) {
+            for (int i = Math.max(0, sum - BREEDS.length + 1); i < (sum + 1) / 2; i++) {
+                int j = sum - i;
+                breeds.add(BREEDS[i] + " x " + BREEDS[j]);
+                weights.add((BREED_WEIGHTS[i] + BREED_WEIGHTS[j]) / 2);
+            }
+        }
+        ALL_BREEDS = breeds.toArray(new String[breeds.size()]);
+        ALL_BREED_WEIGHTS = new int[weights.size()];
+        for (int i = 0; i < ALL_BREED_WEIGHTS.length; i++) {
+            ALL_BREED_WEIGHTS[i] = weights.get(i);
+        }
+    }
+
+    private final Random mRandom;
+    private final Zipf mNames = new Zipf(NAMES.length, 1.0);
+    private final Zipf mBreeds = new Zipf(ALL_BREEDS.length, 1.1);
+
+    public PetDataGenerator(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Returns the next pet. The id is 0, since the pet is not stored yet.
+     */
+    public Pet next() {
+        String name = NAMES[mNames.sample(mRandom)];
+
+        String breed = null;
+        int typicalWeight = 15;
+        if (mRandom.nextDouble() >= NO_BREED) {
+            int rank = mBreeds.sample(mRandom);
+            breed = ALL_BREEDS[rank];
+            typicalWeight = ALL_BREED_WEIGHTS[rank];
+        }
+
+        int gender;
+        double genderRoll = mRandom.nextDouble();
+        if (genderRoll < UNKNOWN_GENDER) {
+            gender = PetEntry.GENDER_UNKNOWN;
+        } else if (genderRoll < (1 + UNKNOWN_GENDER) / 2) {
+            gender = PetEntry.GENDER_MALE;
+        } else {
+            gender = PetEntry.GENDER_FEMALE;
+        }
+
+        long weight = Math.round(
+                typicalWeight * StrictMath.exp(WEIGHT_SIGMA * mRandom.nextGaussian()));
+        weight = Math.max(1, Math.min(MAX_WEIGHT, weight));
+
+        return new Pet(0, name, breed, gender, (int) weight, null);
+    }
+
+    public static ContentValues toContentValues(Pet pet) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, pet.name);
+        values.put(PetEntry.COLUMN_PET_BREED, pet.breed);
+        values.put(PetEntry.COLUMN_PET_GENDER, pet.gender);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, pet.weight);
+        return values;
+    }
+
+    /**
+     * Generates {@code count} pets and bulk loads them through the provider, see
+     * {@link #load(ContentResolver, int, boolean)}.
+     *
+     * @return the number of pets inserted
+     */
+    public int load(ContentResolver contentResolver, int count) {
+        return load(contentResolver, count, true);
+    }
+
+    /**
+     * Generates {@code count} pets and inserts them through the provider in batches of
+     * {@link #BATCH_SIZE}. Blocks, so call it off the main thread.
+     *
+     * @param bulkLoad leave the duplicate check index and the weight history out while
+     *                 inserting and build them for all pets at the end, see
+     *                 {@link PetEntry#buildBulkLoadUri()}
+     * @return the number of pets inserted
+     */
+    public int load(ContentResolver contentResolver, int count, boolean bulkLoad) {
+        Uri uri = bulkLoad ? PetEntry.buildBulkLoadUri() : PetEntry.CONTENT_URI;
+        int inserted = 0;
+        while (inserted < count) {
+            ContentValues[] batch = new ContentValues[Math.min(BATCH_SIZE, count - inserted)];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = toContentValues(next());
+            }
+            int batchInserted = contentResolver.bulkInsert(uri, batch);
+            if (batchInserted == 0) {
+                break;
+            }
+            inserted += batchInserted;
+        }
+        if (bulkLoad) {
+            // Also when a batch came back empty, so the pets before it are complete
+            contentResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_FINISH_BULK_LOAD,
+                    null, null);
+        }
+        return inserted;
+    }
+
+    /**
+     * Draws ranks 0 to n - 1 with a probability proportional to 1 / (rank + 1)^exponent.
+     */
+    private static final class Zipf {
+
+        private final double[] mCumulative;
+
+        Zipf(int n, double exponent) {
+            mCumulative = new double[n];
+            double sum = 0;
+            for (int rank = 0; rank < n; rank++) {
+                sum += 1 / StrictMath.pow(rank + 1, exponent);
+                mCumulative[rank] = sum;
+            }
+            for (int rank = 0; rank < n; rank++) {
+                mCumulative[rank] /= sum;
+            }
+        }
+
+        int sample(Random random) {
+            double value = random.nextDouble();
+            int low = 0;
+            int high = mCumulative.length - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (mCumulative[middle] < value) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+}
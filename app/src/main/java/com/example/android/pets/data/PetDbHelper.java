@@ -1,10 +1,15 @@
 package com.example.android.pets.data;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import com.example.android.pets.data.PetContract.PetArchiveEntry;
+import com.example.android.pets.data.PetContract.PetChangeEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetTrigramEntry;
+import com.example.android.pets.data.PetContract.PetWeightEntry;
 
 /**
  * Created by admin on 5/24/2017.
@@ -14,28 +19,352 @@ public class PetDbHelper extends SQLiteOpenHelper{
     public static final String LOG_TAG = PetDbHelper.class.getSimpleName();
 
     public static final String DATABASE_NAME = "shelter.db";
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 8;
+
+    /**
+     * Database file of the archived pets. It is attached to every connection under
+     * {@link #ARCHIVE_SCHEMA}, so queries and the archival job can use both databases at once.
+     */
+    public static final String ARCHIVE_DATABASE_NAME = "shelter_archive.db";
+    public static final String ARCHIVE_SCHEMA = "archive";
+    private static final int ARCHIVE_VERSION = 1;
+
+    private final Context mContext;
 
     public PetDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
     }
 
 
     @Override
     public void onCreate(SQLiteDatabase db) {
+        createSchema(db);
+    }
+
+    /**
+     * Creates every table, index and trigger of the current schema. Also used by
+     * {@link PetDbSnapshot} to lay out a fresh snapshot file.
+     */
+    static void createSchema(SQLiteDatabase db) {
         String SQL_CREATE_PETS_TABLE = "CREATE TABLE " + PetEntry.TABLE_NAME +" ("
                 + PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
                 + PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, "
                 + PetEntry.COLUMN_PET_BREED + " TEXT, "
                 + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, "
-                + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0" +");" ;
+                + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0, "
+                + PetEntry.COLUMN_PET_PHOTO + " TEXT, "
+                + PetEntry.COLUMN_PET_STATUS + " INTEGER NOT NULL DEFAULT " + PetEntry.STATUS_AVAILABLE + ", "
+                + PetEntry.COLUMN_PET_STATUS_CHANGED + " INTEGER NOT NULL DEFAULT 0" +");" ;
 
         db.execSQL(SQL_CREATE_PETS_TABLE);
+        createStatusIndex(db);
+        createChangeLog(db);
+        createFilterIndexes(db);
+        createTrigramIndex(db);
+        createTrigramCounts(db);
+        createWeightHistory(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         // db.delete(DATABASE_NAME,null,null);
         // onCreate(db);
+
+        if (oldVersion < 2) {
+            createChangeLog(db);
+        }
+        if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                    + PetEntry.COLUMN_PET_PHOTO + " TEXT;");
+        }
+        if (oldVersion < 4) {
+            createFilterIndexes(db);
+        }
+        if (oldVersion < 5) {
+            createTrigramIndex(db);
+            PetDuplicateDetector.rebuildIndex(db);
+        }
+        if (oldVersion < 6) {
+            createWeightHistory(db);
+            // Start every history with the weight the pet has today
+            db.execSQL("INSERT INTO " + PetWeightEntry.TABLE_NAME + " ("
+                    + PetWeightEntry.COLUMN_PET_ID + ", " + PetWeightEntry.COLUMN_TIMESTAMP + ", "
+                    + PetWeightEntry.COLUMN_WEIGHT + ") SELECT " + PetEntry._ID + ", ?, "
+                    + PetEntry.COLUMN_PET_WEIGHT + " FROM " + PetEntry.TABLE_NAME
+                    + " WHERE " + PetEntry.COLUMN_PET_WEIGHT + " > 0;",
+                    new Object[]{System.currentTimeMillis()});
+        }
+        if (oldVersion < 7) {
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                    + PetEntry.COLUMN_PET_STATUS + " INTEGER NOT NULL DEFAULT "
+                    + PetEntry.STATUS_AVAILABLE + ";");
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                    + PetEntry.COLUMN_PET_STATUS_CHANGED + " INTEGER NOT NULL DEFAULT 0;");
+            createStatusIndex(db);
+        }
+        if (oldVersion < 8) {
+            createTrigramCounts(db);
+            db.execSQL("INSERT INTO " + PetTrigramEntry.COUNTS_TABLE_NAME + " ("
+                    + PetTrigramEntry.COLUMN_TRIGRAM + ", " + PetTrigramEntry.COLUMN_PET_COUNT
+                    + ") SELECT " + PetTrigramEntry.COLUMN_TRIGRAM + ", COUNT(*) FROM "
+                    + PetTrigramEntry.TABLE_NAME + " GROUP BY " + PetTrigramEntry.COLUMN_TRIGRAM
+                    + ";");
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        attachArchive(db);
+        if (!db.isReadOnly()) {
+            continueSequencesAboveArchive(db);
+        }
+    }
+
+    /**
+     * Attaches the archive database, creating it on first use. The archive has its own version,
+     * since it is created and upgraded outside of {@link #onUpgrade}.
+     */
+    private void attachArchive(SQLiteDatabase db) {
+        // Without write-ahead logging every statement runs on the one connection attached here.
+        // The framework refuses to enable WAL for a database with attachments.
+        String path = mContext.getDatabasePath(ARCHIVE_DATABASE_NAME).getPath();
+        db.execSQL("ATTACH DATABASE ? AS " + ARCHIVE_SCHEMA + ";", new Object[]{path});
+
+        long version = DatabaseUtils.longForQuery(db,
+                "PRAGMA " + ARCHIVE_SCHEMA + ".user_version;", null);
+        if (version < ARCHIVE_VERSION) {
+            db.beginTransaction();
+            try {
+                createArchiveSchema(db);
+                db.execSQL("PRAGMA " + ARCHIVE_SCHEMA + ".user_version = " + ARCHIVE_VERSION + ";");
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Moves the AUTOINCREMENT sequences of the pets and the weight history past the highest id
+     * in the archive. Archived rows keep their ids, and a restored snapshot can be older than
+     * the archive, so without this a new pet or reading could be given an id the archive
+     * already holds. Runs on every open, which also covers the reopen after a restore.
+     */
+    private static void continueSequencesAboveArchive(SQLiteDatabase db) {
+        String[] tables = {PetArchiveEntry.TABLE_NAME, PetWeightEntry.TABLE_NAME};
+        for (String table : tables) {
+            long archived = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                    + PetEntry._ID + "), 0) FROM " + ARCHIVE_SCHEMA + "." + table + ";", null);
+            if (archived > PetDbSnapshot.readSequence(db, table)) {
+                db.beginTransaction();
+                try {
+                    PetDbSnapshot.writeSequence(db, table, archived);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the tables of the archive. Archived rows keep their ids and never change, so
+     * there are no triggers and the weight rollups are plain copies.
+     */
+    private static void createArchiveSchema(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + ARCHIVE_SCHEMA + "." + PetArchiveEntry.TABLE_NAME + " ("
+                + PetEntry._ID + " INTEGER PRIMARY KEY, "
+                + PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, "
+                + PetEntry.COLUMN_PET_BREED + " TEXT, "
+                + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, "
+                + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0, "
+                + PetEntry.COLUMN_PET_PHOTO + " TEXT, "
+                + PetEntry.COLUMN_PET_STATUS + " INTEGER NOT NULL, "
+                + PetEntry.COLUMN_PET_STATUS_CHANGED + " INTEGER NOT NULL, "
+                + PetArchiveEntry.COLUMN_ARCHIVED + " INTEGER NOT NULL);");
+        db.execSQL("CREATE TABLE " + ARCHIVE_SCHEMA + "." + PetWeightEntry.TABLE_NAME + " ("
+                + PetWeightEntry._ID + " INTEGER PRIMARY KEY, "
+                + PetWeightEntry.COLUMN_PET_ID + " INTEGER NOT NULL, "
+                + PetWeightEntry.COLUMN_TIMESTAMP + " INTEGER NOT NULL, "
+                + PetWeightEntry.COLUMN_WEIGHT + " INTEGER NOT NULL, "
+                + "UNIQUE (" + PetWeightEntry.COLUMN_PET_ID + ", "
+                + PetWeightEntry.COLUMN_TIMESTAMP + "));");
+        createWeightRollup(db, ARCHIVE_SCHEMA + "." + PetWeightEntry.DAILY_TABLE_NAME);
+        createWeightRollup(db, ARCHIVE_SCHEMA + "." + PetWeightEntry.WEEKLY_TABLE_NAME);
+    }
+
+    /**
+     * Index for the archival job, which looks for pets that left the shelter long ago.
+     */
+    private static void createStatusIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + PetEntry.TABLE_NAME + "_status ON " + PetEntry.TABLE_NAME
+                + " (" + PetEntry.COLUMN_PET_STATUS + ", " + PetEntry.COLUMN_PET_STATUS_CHANGED + ");");
+    }
+
+    /**
+     * Creates the append-only weight history, its daily and weekly rollups and the triggers
+     * that keep the rollups up to date and remove the history of deleted pets.
+     */
+    private static void createWeightHistory(SQLiteDatabase db) {
+        // The AUTOINCREMENT id gives the order of appends, which backups copy along
+        db.execSQL("CREATE TABLE " + PetWeightEntry.TABLE_NAME + " ("
+                + PetWeightEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + PetWeightEntry.COLUMN_PET_ID + " INTEGER NOT NULL, "
+                + PetWeightEntry.COLUMN_TIMESTAMP + " INTEGER NOT NULL, "
+                + PetWeightEntry.COLUMN_WEIGHT + " INTEGER NOT NULL, "
+                + "UNIQUE (" + PetWeightEntry.COLUMN_PET_ID + ", "
+                + PetWeightEntry.COLUMN_TIMESTAMP + "));");
+        createWeightRollup(db, PetWeightEntry.DAILY_TABLE_NAME);
+        createWeightRollup(db, PetWeightEntry.WEEKLY_TABLE_NAME);
+
+        db.execSQL("CREATE TRIGGER " + PetWeightEntry.TABLE_NAME + "_no_update BEFORE UPDATE ON "
+                + PetWeightEntry.TABLE_NAME
+                + " BEGIN SELECT RAISE(ABORT, 'weight history is append-only'); END;");
+
+        db.execSQL("CREATE TRIGGER " + PetWeightEntry.TABLE_NAME + "_rollup AFTER INSERT ON "
+                + PetWeightEntry.TABLE_NAME + " BEGIN "
+                + buildRollupSql(PetWeightEntry.DAILY_TABLE_NAME,
+                        PetWeightHistory.dayStartSql("NEW." + PetWeightEntry.COLUMN_TIMESTAMP))
+                + buildRollupSql(PetWeightEntry.WEEKLY_TABLE_NAME,
+                        PetWeightHistory.weekStartSql("NEW." + PetWeightEntry.COLUMN_TIMESTAMP))
+                + " END;");
+
+        db.execSQL("CREATE TRIGGER pets_delete_weights AFTER DELETE ON " + PetEntry.TABLE_NAME
+                + " BEGIN "
+                + buildDeleteWeightsSql(PetWeightEntry.TABLE_NAME)
+                + buildDeleteWeightsSql(PetWeightEntry.DAILY_TABLE_NAME)
+                + buildDeleteWeightsSql(PetWeightEntry.WEEKLY_TABLE_NAME)
+                + " END;");
+    }
+
+    private static void createWeightRollup(SQLiteDatabase db, String table) {
+        db.execSQL("CREATE TABLE " + table + " ("
+                + PetWeightEntry.COLUMN_PET_ID + " INTEGER NOT NULL, "
+                + PetWeightEntry.COLUMN_BUCKET + " INTEGER NOT NULL, "
+                + PetWeightEntry.COLUMN_READING_COUNT + " INTEGER NOT NULL, "
+                + PetWeightEntry.COLUMN_WEIGHT_SUM + " INTEGER NOT NULL, "
+                + PetWeightEntry.COLUMN_MIN_WEIGHT + " INTEGER NOT NULL, "
+                + PetWeightEntry.COLUMN_MAX_WEIGHT + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + PetWeightEntry.COLUMN_PET_ID + ", "
+                + PetWeightEntry.COLUMN_BUCKET + "));");
+    }
+
+    /**
+     * Folds the new reading into its bucket of the rollup table. The framework's SQLite has no
+     * upsert, so the bucket is created empty first and then updated.
+     */
+    private static String buildRollupSql(String table, String bucket) {
+        String petId = "NEW." + PetWeightEntry.COLUMN_PET_ID;
+        String weight = "NEW." + PetWeightEntry.COLUMN_WEIGHT;
+        return "INSERT OR IGNORE INTO " + table + " (" + PetWeightEntry.COLUMN_PET_ID + ", "
+                + PetWeightEntry.COLUMN_BUCKET + ", " + PetWeightEntry.COLUMN_READING_COUNT + ", "
+                + PetWeightEntry.COLUMN_WEIGHT_SUM + ", " + PetWeightEntry.COLUMN_MIN_WEIGHT + ", "
+                + PetWeightEntry.COLUMN_MAX_WEIGHT + ") VALUES (" + petId + ", " + bucket + ", 0, 0, "
+                + weight + ", " + weight + "); "
+                + "UPDATE " + table + " SET "
+                + PetWeightEntry.COLUMN_READING_COUNT + " = " + PetWeightEntry.COLUMN_READING_COUNT + " + 1, "
+                + PetWeightEntry.COLUMN_WEIGHT_SUM + " = " + PetWeightEntry.COLUMN_WEIGHT_SUM + " + " + weight + ", "
+                + PetWeightEntry.COLUMN_MIN_WEIGHT + " = MIN(" + PetWeightEntry.COLUMN_MIN_WEIGHT + ", " + weight + "), "
+                + PetWeightEntry.COLUMN_MAX_WEIGHT + " = MAX(" + PetWeightEntry.COLUMN_MAX_WEIGHT + ", " + weight + ")"
+                + " WHERE " + PetWeightEntry.COLUMN_PET_ID + " = " + petId + " AND "
+                + PetWeightEntry.COLUMN_BUCKET + " = " + bucket + ";";
+    }
+
+    private static String buildDeleteWeightsSql(String table) {
+        return "DELETE FROM " + table + " WHERE " + PetWeightEntry.COLUMN_PET_ID + " = OLD."
+                + PetEntry._ID + ";";
+    }
+
+    /**
+     * Creates the trigram table used to find duplicate pets. Rows are written by the provider;
+     * the trigger only takes care of deleted pets.
+     */
+    private static void createTrigramIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + PetTrigramEntry.TABLE_NAME + " ("
+                + PetTrigramEntry.COLUMN_TRIGRAM + " TEXT NOT NULL, "
+                + PetTrigramEntry.COLUMN_PET_ID + " INTEGER NOT NULL);");
+        // Lookups go by trigram, deletes by pet
+        db.execSQL("CREATE INDEX " + PetTrigramEntry.TABLE_NAME + "_trigram ON "
+                + PetTrigramEntry.TABLE_NAME + " (" + PetTrigramEntry.COLUMN_TRIGRAM + ", "
+                + PetTrigramEntry.COLUMN_PET_ID + ");");
+        db.execSQL("CREATE INDEX " + PetTrigramEntry.TABLE_NAME + "_pet_id ON "
+                + PetTrigramEntry.TABLE_NAME + " (" + PetTrigramEntry.COLUMN_PET_ID + ");");
+        db.execSQL("CREATE TRIGGER pets_delete_trigrams AFTER DELETE ON " + PetEntry.TABLE_NAME
+                + " BEGIN DELETE FROM " + PetTrigramEntry.TABLE_NAME + " WHERE "
+                + PetTrigramEntry.COLUMN_PET_ID + " = OLD." + PetEntry._ID + "; END;");
+    }
+
+    /**
+     * Creates the table that counts the pets per trigram, so the duplicate check can skip
+     * trigrams that a large part of the shelter shares. Triggers keep it in step with the
+     * trigram table.
+     */
+    private static void createTrigramCounts(SQLiteDatabase db) {
+        String counts = PetTrigramEntry.COUNTS_TABLE_NAME;
+        String trigram = PetTrigramEntry.COLUMN_TRIGRAM;
+        String pets = PetTrigramEntry.COLUMN_PET_COUNT;
+        db.execSQL("CREATE TABLE " + counts + " ("
+                + trigram + " TEXT PRIMARY KEY, "
+                + pets + " INTEGER NOT NULL);");
+        db.execSQL("CREATE TRIGGER pet_trigrams_after_insert AFTER INSERT ON "
+                + PetTrigramEntry.TABLE_NAME + " BEGIN"
+                + " INSERT OR IGNORE INTO " + counts + " (" + trigram + ", " + pets + ")"
+                + " VALUES (NEW." + trigram + ", 0);"
+                + " UPDATE " + counts + " SET " + pets + " = " + pets + " + 1"
+                + " WHERE " + trigram + " = NEW." + trigram + "; END;");
+        db.execSQL("CREATE TRIGGER pet_trigrams_after_delete AFTER DELETE ON "
+                + PetTrigramEntry.TABLE_NAME + " BEGIN"
+                + " UPDATE " + counts + " SET " + pets + " = " + pets + " - 1"
+                + " WHERE " + trigram + " = OLD." + trigram + "; END;");
+    }
+
+    /**
+     * Indexes for the prefix filter of the catalog, which compares name and breed ignoring case.
+     */
+    private static void createFilterIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + PetEntry.TABLE_NAME + "_name ON " + PetEntry.TABLE_NAME
+                + " (" + PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE);");
+        db.execSQL("CREATE INDEX " + PetEntry.TABLE_NAME + "_breed ON " + PetEntry.TABLE_NAME
+                + " (" + PetEntry.COLUMN_PET_BREED + " COLLATE NOCASE);");
+    }
+
+    /**
+     * Creates the change log table and the triggers that append a row to it for every
+     * insert, update and delete on the pets table.
+     */
+    private static void createChangeLog(SQLiteDatabase db) {
+        String SQL_CREATE_CHANGES_TABLE = "CREATE TABLE " + PetChangeEntry.TABLE_NAME + " ("
+                + PetChangeEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + PetChangeEntry.COLUMN_PET_ID + " INTEGER NOT NULL, "
+                + PetChangeEntry.COLUMN_OPERATION + " INTEGER NOT NULL" + ");";
+
+        // Compaction groups the log by pet id
+        String SQL_CREATE_CHANGES_INDEX = "CREATE INDEX " + PetChangeEntry.TABLE_NAME + "_pet_id ON "
+                + PetChangeEntry.TABLE_NAME + " (" + PetChangeEntry.COLUMN_PET_ID + ");";
+
+        // Holds the highest sequence number that log retention has thrown away
+        String SQL_CREATE_HORIZON_TABLE = "CREATE TABLE " + PetChangeEntry.HORIZON_TABLE_NAME
+                + " (seq INTEGER NOT NULL);";
+
+        db.execSQL(SQL_CREATE_CHANGES_TABLE);
+        db.execSQL(SQL_CREATE_CHANGES_INDEX);
+        db.execSQL(SQL_CREATE_HORIZON_TABLE);
+        db.execSQL("INSERT INTO " + PetChangeEntry.HORIZON_TABLE_NAME + " (seq) VALUES (0);");
+
+        db.execSQL(buildChangeTrigger("pets_after_insert", "INSERT", "NEW",
+                PetChangeEntry.OPERATION_INSERT));
+        db.execSQL(buildChangeTrigger("pets_after_update", "UPDATE", "NEW",
+                PetChangeEntry.OPERATION_UPDATE));
+        db.execSQL(buildChangeTrigger("pets_after_delete", "DELETE", "OLD",
+                PetChangeEntry.OPERATION_DELETE));
+    }
+
+    private static String buildChangeTrigger(String name, String event, String row, int operation) {
+        return "CREATE TRIGGER " + name + " AFTER " + event + " ON " + PetEntry.TABLE_NAME
+                + " BEGIN INSERT INTO " + PetChangeEntry.TABLE_NAME + " ("
+                + PetChangeEntry.COLUMN_PET_ID + ", " + PetChangeEntry.COLUMN_OPERATION + ")"
+                + " VALUES (" + row + "." + PetEntry._ID + ", " + operation + "); END;";
     }
 }
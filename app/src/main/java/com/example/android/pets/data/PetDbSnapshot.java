@@ -0,0 +1,472 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetWeightEntry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Online backup and restore of the pets database.
+ *
+ * The framework does not expose SQLite's backup API, so a snapshot is built from the change log
+ * instead: the pets table is copied in small batches without holding any lock between them, then
+ * every pet changed in the meantime (according to {@link PetChangeLog}) is copied again. Only the
+ * last, small round of changes is copied inside a transaction. The database has a single
+ * connection, so that round holds off readers as well as writers, but only for the few
+ * milliseconds it takes to copy at most one batch.
+ *
+ * The weight history is append-only, so it is copied along in order of its ids; the rollups are
+ * rebuilt by the snapshot's own triggers as the readings arrive.
+ */
+public class PetDbSnapshot {
+
+    public static final String LOG_TAG = PetDbSnapshot.class.getSimpleName();
+
+    /**
+     * Number of rows copied per step. Also the most changes, and the most weight readings, left
+     * for the final locked round, unless {@link #MAX_CATCH_UP_ROUNDS} runs out first.
+     */
+    private static final int BATCH_SIZE = 500;
+
+    /**
+     * Unlocked catch-up rounds at most. Writers that keep ahead of the copy, like a bulk load,
+     * would otherwise keep the backup from ever finishing; past this the final round copies
+     * whatever is left while holding them off.
+     */
+    private static final int MAX_CATCH_UP_ROUNDS = 10;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String[] JOURNAL_SUFFIXES = {"-journal", "-wal", "-shm"};
+
+    private final Context mContext;
+    private final PetDbHelper mDbHelper;
+
+    public PetDbSnapshot(Context context, PetDbHelper dbHelper) {
+        mContext = context;
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Writes a consistent snapshot of the database to the given file. The file only appears once
+     * the snapshot is complete.
+     *
+     * @return the change sequence number the snapshot is consistent with
+     */
+    public long backup(File destination) throws IOException {
+        File temp = new File(destination.getPath() + TEMP_SUFFIX);
+        deleteDatabaseFiles(temp);
+
+        long sequence;
+        SQLiteDatabase snapshot = SQLiteDatabase.openOrCreateDatabase(temp, null);
+        try {
+            PetDbHelper.createSchema(snapshot);
+            sequence = copyDatabase(mDbHelper.getReadableDatabase(), snapshot);
+            // Derived from the pets, so cheaper to rebuild than to keep in step while copying
+            PetDuplicateDetector.rebuildIndex(snapshot);
+            snapshot.setVersion(PetDbHelper.DATABASE_VERSION);
+        } finally {
+            snapshot.close();
+        }
+
+        deleteJournals(temp);
+        if (!temp.renameTo(destination)) {
+            throw new IOException("Cannot move snapshot to " + destination);
+        }
+
+        Log.i(LOG_TAG, "Snapshot written to " + destination + " at sequence " + sequence);
+        return sequence;
+    }
+
+    /**
+     * Replaces the database with the given snapshot. The snapshot is copied next to the database
+     * first, so the helper is only closed for the time it takes to rename the file.
+     *
+     * The change sequence and the pet ids of the restored database continue above both the live
+     * database and the snapshot. Every sync client is told to resync, however far it got, and no
+     * id is handed out twice.
+     *
+     * @param exclusiveLock held while the database is swapped; the provider takes the other
+     *                      side of it around every operation, so none of them is left holding
+     *                      a closed database or writing into the replaced file
+     */
+    public void restore(File source, Lock exclusiveLock) throws IOException {
+        // Make sure this really is a database we can open before touching the live one
+        SQLiteDatabase candidate = SQLiteDatabase.openDatabase(source.getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            if (candidate.getVersion() > PetDbHelper.DATABASE_VERSION) {
+                throw new IOException("Snapshot " + source + " has a newer schema version "
+                        + candidate.getVersion());
+            }
+        } finally {
+            candidate.close();
+        }
+
+        File databaseFile = mContext.getDatabasePath(PetDbHelper.DATABASE_NAME);
+        File temp = new File(databaseFile.getPath() + TEMP_SUFFIX);
+        copyFile(source, temp);
+
+        exclusiveLock.lock();
+        try {
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            continueSequences(temp, PetChangeLog.readLatestSequence(database),
+                    readSequence(database, PetEntry.TABLE_NAME));
+
+            mDbHelper.close();
+            deleteJournals(databaseFile);
+            if (!temp.renameTo(databaseFile)) {
+                throw new IOException("Cannot move " + temp + " over " + databaseFile);
+            }
+            // Reopen right away, which also upgrades an older snapshot
+            mDbHelper.getWritableDatabase();
+        } finally {
+            exclusiveLock.unlock();
+        }
+
+        Log.i(LOG_TAG, "Database restored from " + source);
+    }
+
+    /**
+     * Copies the pets table and then catches up with the change log until the snapshot matches
+     * the live database. Starts over if log retention drops changes the snapshot still needs.
+     */
+    private long copyDatabase(SQLiteDatabase database, SQLiteDatabase snapshot) {
+        while (true) {
+            long sequence = PetChangeLog.readLatestSequence(database);
+            copyRows(database, snapshot);
+            long historyId = copyWeightHistory(database, snapshot, -1);
+
+            // Catch up without any lock until only a small delta of changed pets and new
+            // readings is left, or the writers turn out to be faster than the copy
+            long latest = PetChangeLog.readLatestSequence(database);
+            int rounds = 0;
+            while (rounds++ < MAX_CATCH_UP_ROUNDS
+                    && (latest - sequence > BATCH_SIZE
+                    || readLatestReading(database) - historyId > BATCH_SIZE)) {
+                if (!copyChangedRows(database, snapshot, sequence, latest)) {
+                    break;
+                }
+                historyId = copyWeightHistory(database, snapshot, historyId);
+                sequence = latest;
+                latest = PetChangeLog.readLatestSequence(database);
+            }
+
+            // Copy the last changes while holding off other writers
+            long petSequence;
+            boolean complete;
+            database.beginTransactionNonExclusive();
+            try {
+                latest = PetChangeLog.readLatestSequence(database);
+                complete = copyChangedRows(database, snapshot, sequence, latest);
+                copyWeightHistory(database, snapshot, historyId);
+                petSequence = readSequence(database, PetEntry.TABLE_NAME);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+
+            if (complete) {
+                finishSnapshot(snapshot, latest, petSequence);
+                return latest;
+            }
+
+            Log.w(LOG_TAG, "Change log was trimmed during backup, starting over");
+            snapshot.delete(PetEntry.TABLE_NAME, null, null);
+            snapshot.delete(PetWeightEntry.TABLE_NAME, null, null);
+            snapshot.delete(PetWeightEntry.DAILY_TABLE_NAME, null, null);
+            snapshot.delete(PetWeightEntry.WEEKLY_TABLE_NAME, null, null);
+        }
+    }
+
+    /**
+     * Copies the whole pets table in batches of {@link #BATCH_SIZE} rows.
+     */
+    private static void copyRows(SQLiteDatabase database, SQLiteDatabase snapshot) {
+        long lastId = -1;
+        while (true) {
+            Cursor cursor = database.query(PetEntry.TABLE_NAME, null,
+                    PetEntry._ID + " > ?", new String[]{String.valueOf(lastId)},
+                    null, null, PetEntry._ID, String.valueOf(BATCH_SIZE));
+            try {
+                if (cursor.getCount() == 0) {
+                    return;
+                }
+                lastId = insertRows(PetEntry.TABLE_NAME, cursor, snapshot);
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Copies the weight readings appended after the given id in batches of {@link #BATCH_SIZE}.
+     *
+     * @return the id of the last reading copied
+     */
+    private static long copyWeightHistory(SQLiteDatabase database, SQLiteDatabase snapshot,
+                                          long lastId) {
+        while (true) {
+            Cursor cursor = database.query(PetWeightEntry.TABLE_NAME, null,
+                    PetWeightEntry._ID + " > ?", new String[]{String.valueOf(lastId)},
+                    null, null, PetWeightEntry._ID, String.valueOf(BATCH_SIZE));
+            try {
+                if (cursor.getCount() == 0) {
+                    return lastId;
+                }
+                lastId = insertRows(PetWeightEntry.TABLE_NAME, cursor, snapshot);
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the id of the latest weight reading, or -1 if there is none. Ids only grow, so
+     * the difference to the last copied id bounds the readings left to copy.
+     */
+    private static long readLatestReading(SQLiteDatabase database) {
+        return DatabaseUtils.longForQuery(database, "SELECT IFNULL(MAX(" + PetWeightEntry._ID
+                + "), -1) FROM " + PetWeightEntry.TABLE_NAME, null);
+    }
+
+    /**
+     * Copies every pet changed between the two sequence numbers again, removing those that are
+     * gone from the live table.
+     *
+     * @return false if log retention already dropped some of these changes
+     */
+    private static boolean copyChangedRows(SQLiteDatabase database, SQLiteDatabase snapshot,
+                                           long from, long to) {
+        if (from == to) {
+            return true;
+        }
+        if (PetChangeLog.readHorizon(database) > from) {
+            return false;
+        }
+
+        List<String> ids = new ArrayList<>();
+        Cursor changes = database.query(true, PetChangeEntry.TABLE_NAME,
+                new String[]{PetChangeEntry.COLUMN_PET_ID},
+                PetChangeEntry._ID + " > ? AND " + PetChangeEntry._ID + " <= ?",
+                new String[]{String.valueOf(from), String.valueOf(to)},
+                null, null, null, null, null);
+        try {
+            while (changes.moveToNext()) {
+                ids.add(changes.getString(0));
+            }
+        } finally {
+            changes.close();
+        }
+
+        for (int start = 0; start < ids.size(); start += BATCH_SIZE) {
+            String[] batch = ids.subList(start, Math.min(start + BATCH_SIZE, ids.size()))
+                    .toArray(new String[0]);
+            String selection = PetEntry._ID + " IN (" + placeholders(batch.length) + ")";
+
+            Set<String> gone = new HashSet<>();
+            Collections.addAll(gone, batch);
+            Cursor cursor = database.query(PetEntry.TABLE_NAME, null, selection, batch,
+                    null, null, null);
+            try {
+                int idColumnIndex = cursor.getColumnIndexOrThrow(PetEntry._ID);
+                while (cursor.moveToNext()) {
+                    gone.remove(cursor.getString(idColumnIndex));
+                }
+                // Replacing a row does not fire the delete triggers, so the copied weight
+                // history of a changed pet stays in place
+                cursor.moveToPosition(-1);
+                insertRows(PetEntry.TABLE_NAME, cursor, snapshot);
+            } finally {
+                cursor.close();
+            }
+
+            // Deleting a pet also deletes its weight history in the snapshot
+            if (!gone.isEmpty()) {
+                String[] goneIds = gone.toArray(new String[0]);
+                snapshot.delete(PetEntry.TABLE_NAME,
+                        PetEntry._ID + " IN (" + placeholders(goneIds.length) + ")", goneIds);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Inserts every row of the cursor into the given table of the snapshot in one transaction.
+     *
+     * @return the id of the last row
+     */
+    private static long insertRows(String table, Cursor cursor, SQLiteDatabase snapshot) {
+        long lastId = -1;
+        int idColumnIndex = cursor.getColumnIndexOrThrow(BaseColumns._ID);
+
+        snapshot.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            while (cursor.moveToNext()) {
+                values.clear();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    putColumn(cursor, i, values);
+                }
+                snapshot.insertWithOnConflict(table, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+                lastId = cursor.getLong(idColumnIndex);
+            }
+            snapshot.setTransactionSuccessful();
+        } finally {
+            snapshot.endTransaction();
+        }
+        return lastId;
+    }
+
+    private static void putColumn(Cursor cursor, int index, ContentValues values) {
+        String column = cursor.getColumnName(index);
+        switch (cursor.getType(index)) {
+            case Cursor.FIELD_TYPE_NULL:
+                values.putNull(column);
+                break;
+            case Cursor.FIELD_TYPE_INTEGER:
+                values.put(column, cursor.getLong(index));
+                break;
+            case Cursor.FIELD_TYPE_FLOAT:
+                values.put(column, cursor.getDouble(index));
+                break;
+            case Cursor.FIELD_TYPE_BLOB:
+                values.put(column, cursor.getBlob(index));
+                break;
+            default:
+                values.put(column, cursor.getString(index));
+        }
+    }
+
+    /**
+     * Throws away the change log the snapshot wrote while it was filled, and continues the
+     * sequences where the live database stood when the snapshot was taken.
+     */
+    private static void finishSnapshot(SQLiteDatabase snapshot, long sequence, long petSequence) {
+        snapshot.beginTransaction();
+        try {
+            snapshot.delete(PetChangeEntry.TABLE_NAME, null, null);
+            // Readings of pets that were inserted and deleted again while copying
+            String orphaned = PetWeightEntry.COLUMN_PET_ID + " NOT IN (SELECT " + PetEntry._ID
+                    + " FROM " + PetEntry.TABLE_NAME + ")";
+            snapshot.delete(PetWeightEntry.TABLE_NAME, orphaned, null);
+            snapshot.delete(PetWeightEntry.DAILY_TABLE_NAME, orphaned, null);
+            snapshot.delete(PetWeightEntry.WEEKLY_TABLE_NAME, orphaned, null);
+            snapshot.execSQL("UPDATE " + PetChangeEntry.HORIZON_TABLE_NAME + " SET seq = ?",
+                    new Object[]{sequence});
+            writeSequence(snapshot, PetEntry.TABLE_NAME, petSequence);
+            writeSequence(snapshot, PetChangeEntry.TABLE_NAME, sequence);
+            snapshot.setTransactionSuccessful();
+        } finally {
+            snapshot.endTransaction();
+        }
+    }
+
+    /**
+     * Moves the change sequence and the pet ids of a snapshot about to be restored past those
+     * of the live database. The horizon goes one past the latest change either database has
+     * seen, so a client that is fully in sync with the live database still gets a resync.
+     */
+    private static void continueSequences(File file, long liveSequence, long livePetSequence) {
+        SQLiteDatabase snapshot = SQLiteDatabase.openDatabase(file.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        try {
+            snapshot.beginTransaction();
+            try {
+                long sequence = Math.max(liveSequence,
+                        PetChangeLog.readLatestSequence(snapshot)) + 1;
+                long petSequence = Math.max(livePetSequence,
+                        readSequence(snapshot, PetEntry.TABLE_NAME)) + 1;
+                snapshot.delete(PetChangeEntry.TABLE_NAME, null, null);
+                snapshot.execSQL("UPDATE " + PetChangeEntry.HORIZON_TABLE_NAME + " SET seq = ?",
+                        new Object[]{sequence});
+                writeSequence(snapshot, PetEntry.TABLE_NAME, petSequence);
+                writeSequence(snapshot, PetChangeEntry.TABLE_NAME, sequence);
+                snapshot.setTransactionSuccessful();
+            } finally {
+                snapshot.endTransaction();
+            }
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Returns the last id AUTOINCREMENT handed out for the table, or 0.
+     */
+    static long readSequence(SQLiteDatabase database, String table) {
+        return DatabaseUtils.longForQuery(database,
+                "SELECT IFNULL(MAX(seq), 0) FROM sqlite_sequence WHERE name = ?",
+                new String[]{table});
+    }
+
+    static void writeSequence(SQLiteDatabase database, String table, long sequence) {
+        database.execSQL("DELETE FROM sqlite_sequence WHERE name = ?", new Object[]{table});
+        database.execSQL("INSERT INTO sqlite_sequence (name, seq) VALUES (?, ?)",
+                new Object[]{table, sequence});
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder builder = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append('?');
+        }
+        return builder.toString();
+    }
+
+    private static void copyFile(File source, File destination) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(destination);
+            try {
+                FileChannel inChannel = in.getChannel();
+                FileChannel outChannel = out.getChannel();
+                long size = inChannel.size();
+                long position = 0;
+                while (position < size) {
+                    position += inChannel.transferTo(position, size - position, outChannel);
+                }
+                // The file is about to replace the database, so make sure it is on disk
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void deleteDatabaseFiles(File file) {
+        file.delete();
+        deleteJournals(file);
+    }
+
+    private static void deleteJournals(File file) {
+        for (String suffix : JOURNAL_SUFFIXES) {
+            new File(file.getPath() + suffix).delete();
+        }
+    }
+}
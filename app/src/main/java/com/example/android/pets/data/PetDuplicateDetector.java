@@ -0,0 +1,692 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetTrigramEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds pets that were probably registered twice, with a slightly different spelling of the name
+ * or breed.
+ *
+ * Name and breed are split into trigrams that are kept in {@link PetTrigramEntry#TABLE_NAME}.
+ * Looking up the name trigrams of a new pet in that index yields a short list of the pets
+ * sharing the most of them with a matching gender and weight; trigrams that too many pets have
+ * are skipped, as they would only make the list longer. Ties, which common names have plenty
+ * of, go to pets with the very same name and then to those sharing the most breed trigrams.
+ * The short list is then ranked by the similarity of name and breed. The index
+ * is written by {@link PetProvider} in the same transaction as the pet itself; a trigger created
+ * in {@link PetDbHelper} removes the trigrams of deleted pets.
+ */
+public final class PetDuplicateDetector {
+
+    /** Candidates below this similarity are not reported. */
+    private static final double MIN_SCORE = 0.4;
+
+    /** The name weighs more than the breed, which is often missing or generic. */
+    private static final double NAME_WEIGHT = 0.7;
+
+    /** Pets at most this many kilos apart (or this fraction of the weight) are compared. */
+    private static final int MIN_WEIGHT_TOLERANCE = 2;
+    private static final double WEIGHT_TOLERANCE = 0.2;
+
+    /**
+     * Lowest name similarity that can still reach {@link #MIN_SCORE}, which takes a perfect
+     * breed match.
+     */
+    private static final double MIN_NAME_SCORE = (MIN_SCORE - (1 - NAME_WEIGHT)) / NAME_WEIGHT;
+
+    /** At most this many pets sharing name trigrams are scored per lookup. */
+    private static final int MAX_CANDIDATES = 50;
+
+    /**
+     * Name trigrams that more pets than this have are not looked up; "  m" or "ax " would
+     * otherwise pull in a large part of the shelter.
+     */
+    private static final long MAX_TRIGRAM_PETS = 1000;
+
+    /** Columns of a stored candidate, in the order {@link #addIfSimilar} reads them. */
+    private static final String CANDIDATE_COLUMNS = "p." + PetEntry._ID + ", p."
+            + PetEntry.COLUMN_PET_NAME + ", p." + PetEntry.COLUMN_PET_BREED;
+
+    /** Pets read at a time by {@link #indexMissingPets(SQLiteDatabase)}. */
+    private static final int INDEX_BATCH_SIZE = 1000;
+
+    /**
+     * Name and breed trigrams of a batch being checked, and per entry the hits it needs and the
+     * gender and weights it matches.
+     */
+    private static final String LOOKUP_TABLE = "temp.duplicate_lookup";
+    private static final String LOOKUP_BREED_TABLE = "temp.duplicate_lookup_breeds";
+    private static final String LOOKUP_ENTRY_TABLE = "temp.duplicate_lookup_entries";
+
+    private static final String NAME_PREFIX = "n";
+    private static final String BREED_PREFIX = "b";
+
+    private PetDuplicateDetector() {}
+
+    /**
+     * A pet that is probably the same animal as the one that was looked up.
+     */
+    public static final class Candidate {
+
+        /** Id of the existing pet, or -1 if the candidate is another entry of the same batch. */
+        public final long petId;
+
+        /** Index of the candidate in the batch, or -1 if it is an existing pet. */
+        public final int batchIndex;
+
+        public final String name;
+        public final String breed;
+
+        /** Similarity between 0 and 1. */
+        public final double score;
+
+        Candidate(long petId, int batchIndex, String name, String breed, double score) {
+            this.petId = petId;
+            this.batchIndex = batchIndex;
+            this.name = name;
+            this.breed = breed;
+            this.score = score;
+        }
+    }
+
+    /**
+     * The name trigrams a lookup goes by, and how many of them a pet has to share to be scored.
+     */
+    private static final class Lookup {
+
+        final List<String> trigrams;
+        final int minHits;
+
+        Lookup(List<String> trigrams, int minHits) {
+            this.trigrams = trigrams;
+            this.minHits = minHits;
+        }
+    }
+
+    private static final Comparator<Candidate> BY_SCORE = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+            return Double.compare(b.score, a.score);
+        }
+    };
+
+    /**
+     * Returns the trigrams of a name or breed. Words are lower cased and padded the way pg_trgm
+     * does it, so that the start of a word counts more than its end.
+     */
+    static Set<String> trigrams(String text, String prefix) {
+        Set<String> trigrams = new HashSet<>();
+        if (text == null) {
+            return trigrams;
+        }
+        String normalized = text.toLowerCase(Locale.US).replaceAll("[^\\p{L}\\p{Nd}]+", " ").trim();
+        if (normalized.isEmpty()) {
+            return trigrams;
+        }
+        for (String word : normalized.split(" ")) {
+            String padded = "  " + word + " ";
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                trigrams.add(prefix + padded.substring(i, i + 3));
+            }
+        }
+        return trigrams;
+    }
+
+    private static Set<String> petTrigrams(String name, String breed) {
+        Set<String> trigrams = trigrams(name, NAME_PREFIX);
+        trigrams.addAll(trigrams(breed, BREED_PREFIX));
+        return trigrams;
+    }
+
+    /**
+     * Replaces the trigrams of the given pet. Call inside the transaction that wrote the pet.
+     */
+    static void indexPet(SQLiteDatabase database, long petId, String name, String breed) {
+        database.delete(PetTrigramEntry.TABLE_NAME, PetTrigramEntry.COLUMN_PET_ID + "=?",
+                new String[]{String.valueOf(petId)});
+
+        SQLiteStatement insert = compileIndex(database);
+        try {
+            indexNewPet(insert, petId, name, breed);
+        } finally {
+            insert.close();
+        }
+    }
+
+    /**
+     * Compiles the statement that {@link #indexNewPet(SQLiteStatement, long, String, String)}
+     * runs, so bulk inserts can reuse it for every pet.
+     */
+    static SQLiteStatement compileIndex(SQLiteDatabase database) {
+        return database.compileStatement("INSERT INTO " + PetTrigramEntry.TABLE_NAME + " ("
+                + PetTrigramEntry.COLUMN_TRIGRAM + ", " + PetTrigramEntry.COLUMN_PET_ID
+                + ") VALUES (?, ?)");
+    }
+
+    /**
+     * Adds the trigrams of a pet that has none indexed yet.
+     */
+    static void indexNewPet(SQLiteStatement insert, long petId, String name, String breed) {
+        for (String trigram : petTrigrams(name, breed)) {
+            insert.bindString(1, trigram);
+            insert.bindLong(2, petId);
+            insert.executeInsert();
+        }
+    }
+
+    /**
+     * Re-reads name and breed of the given pet and indexes them again. Call inside the
+     * transaction that updated the pet.
+     */
+    static void reindexPet(SQLiteDatabase database, long petId) {
+        Cursor cursor = database.query(PetEntry.TABLE_NAME, new String[]{
+                        PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED},
+                PetEntry._ID + "=?", new String[]{String.valueOf(petId)}, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                indexPet(database, petId, cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Indexes every pet that has no trigrams yet, e.g. after a bulk load that left the index
+     * out. Call inside a transaction.
+     *
+     * @return the number of pets indexed
+     */
+    static int indexMissingPets(SQLiteDatabase database) {
+        SQLiteStatement insert = compileIndex(database);
+        int indexed = 0;
+        long lastId = -1;
+        try {
+            // In batches by id, since every batch changes what the query finds
+            while (true) {
+                Cursor cursor = database.rawQuery("SELECT " + PetEntry._ID + ", "
+                        + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED
+                        + " FROM " + PetEntry.TABLE_NAME + " p WHERE " + PetEntry._ID + " > ?"
+                        + " AND NOT EXISTS (SELECT 1 FROM " + PetTrigramEntry.TABLE_NAME + " t"
+                        + " WHERE t." + PetTrigramEntry.COLUMN_PET_ID + " = p." + PetEntry._ID
+                        + ") ORDER BY " + PetEntry._ID + " LIMIT " + INDEX_BATCH_SIZE,
+                        new String[]{String.valueOf(lastId)});
+                try {
+                    if (cursor.getCount() == 0) {
+                        return indexed;
+                    }
+                    while (cursor.moveToNext()) {
+                        lastId = cursor.getLong(0);
+                        indexNewPet(insert, lastId, cursor.getString(1), cursor.getString(2));
+                        indexed++;
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    /**
+     * Rebuilds the whole index, e.g. after an upgrade or for a fresh snapshot.
+     */
+    static void rebuildIndex(SQLiteDatabase database) {
+        database.beginTransaction();
+        try {
+            database.delete(PetTrigramEntry.TABLE_NAME, null, null);
+            Cursor cursor = database.query(PetEntry.TABLE_NAME, new String[]{PetEntry._ID,
+                            PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED},
+                    null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    indexPet(database, cursor.getLong(0), cursor.getString(1), cursor.getString(2));
+                }
+            } finally {
+                cursor.close();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the existing pets that are probably the same animal as the described one, best
+     * match first.
+     *
+     * @param gender    one of the {@link PetEntry} gender constants; unknown matches any gender
+     * @param weight    weight in kilos, or null to ignore the weight
+     * @param excludeId id of the pet itself when checking a pet that is already stored, else -1
+     */
+    public static List<Candidate> findDuplicates(SQLiteDatabase database, String name, String breed,
+                                                 int gender, Integer weight, long excludeId) {
+        Set<String> nameTrigrams = trigrams(name, NAME_PREFIX);
+        Set<String> breedTrigrams = trigrams(breed, BREED_PREFIX);
+
+        SQLiteStatement frequency = compileFrequency(database);
+        Lookup lookup;
+        try {
+            lookup = planLookup(frequency, new HashMap<String, Long>(), nameTrigrams);
+        } finally {
+            frequency.close();
+        }
+        if (lookup == null) {
+            return Collections.emptyList();
+        }
+
+        // Gender and weight are checked before the short list is cut off, so pets with a
+        // common name that cannot match do not crowd out the ones that can
+        List<String> args = new ArrayList<>(lookup.trigrams);
+        StringBuilder sql = new StringBuilder("SELECT " + CANDIDATE_COLUMNS
+                + " FROM (SELECT t." + PetTrigramEntry.COLUMN_PET_ID + " AS "
+                + PetTrigramEntry.COLUMN_PET_ID + ", COUNT(*) AS hits"
+                + " FROM " + PetTrigramEntry.TABLE_NAME + " t"
+                + " JOIN " + PetEntry.TABLE_NAME + " c ON c." + PetEntry._ID
+                + " = t." + PetTrigramEntry.COLUMN_PET_ID
+                + " WHERE t." + PetTrigramEntry.COLUMN_TRIGRAM + " IN (");
+        appendPlaceholders(sql, lookup.trigrams.size());
+        sql.append(")");
+        if (excludeId != -1) {
+            sql.append(" AND t." + PetTrigramEntry.COLUMN_PET_ID + " != ?");
+            args.add(String.valueOf(excludeId));
+        }
+        if (gender != PetEntry.GENDER_UNKNOWN) {
+            sql.append(" AND c." + PetEntry.COLUMN_PET_GENDER + " IN (?, "
+                    + PetEntry.GENDER_UNKNOWN + ")");
+            args.add(String.valueOf(gender));
+        }
+        if (weight != null) {
+            sql.append(" AND c." + PetEntry.COLUMN_PET_WEIGHT + " BETWEEN ? AND ?");
+            args.add(String.valueOf(weight - weightTolerance(weight)));
+            args.add(String.valueOf(weight + weightTolerance(weight)));
+        }
+        sql.append(" GROUP BY t." + PetTrigramEntry.COLUMN_PET_ID + " HAVING hits >= ?"
+                + " ORDER BY hits DESC, MAX(c." + PetEntry.COLUMN_PET_NAME
+                + " = ? COLLATE NOCASE) DESC");
+        args.add(String.valueOf(lookup.minHits));
+        args.add(name == null ? "" : name.trim());
+        if (!breedTrigrams.isEmpty()) {
+            sql.append(", (SELECT COUNT(*) FROM " + PetTrigramEntry.TABLE_NAME + " b"
+                    + " WHERE b." + PetTrigramEntry.COLUMN_PET_ID + " = t."
+                    + PetTrigramEntry.COLUMN_PET_ID + " AND b." + PetTrigramEntry.COLUMN_TRIGRAM
+                    + " IN (");
+            appendPlaceholders(sql, breedTrigrams.size());
+            sql.append(")) DESC");
+            args.addAll(breedTrigrams);
+        }
+        sql.append(", t." + PetTrigramEntry.COLUMN_PET_ID + " LIMIT " + MAX_CANDIDATES + ") m"
+                + " JOIN " + PetEntry.TABLE_NAME + " p ON p." + PetEntry._ID
+                + " = m." + PetTrigramEntry.COLUMN_PET_ID);
+
+        List<Candidate> candidates = new ArrayList<>();
+        Cursor cursor = database.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+        try {
+            while (cursor.moveToNext()) {
+                addIfSimilar(candidates, cursor, 0, nameTrigrams, breedTrigrams);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Collections.sort(candidates, BY_SCORE);
+        return candidates;
+    }
+
+    /**
+     * Checks a whole import batch at once. For every entry the result holds its likely
+     * duplicates among the stored pets and among the earlier entries of the same batch.
+     */
+    public static List<List<Candidate>> findDuplicates(SQLiteDatabase database,
+                                                       List<ContentValues> batch) {
+        List<List<Candidate>> results = findStoredDuplicates(database, batch);
+
+        // Index of the batch itself: trigram -> entries containing it
+        Map<String, List<Integer>> batchIndex = new HashMap<>();
+        List<Set<String>> batchNameTrigrams = new ArrayList<>(batch.size());
+        List<Set<String>> batchBreedTrigrams = new ArrayList<>(batch.size());
+
+        for (int i = 0; i < batch.size(); i++) {
+            ContentValues values = batch.get(i);
+            String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
+            String breed = values.getAsString(PetEntry.COLUMN_PET_BREED);
+            int gender = genderOf(values);
+            Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+
+            List<Candidate> candidates = results.get(i);
+
+            Set<String> nameTrigrams = trigrams(name, NAME_PREFIX);
+            Set<String> breedTrigrams = trigrams(breed, BREED_PREFIX);
+
+            // Count shared name trigrams with earlier entries of the batch
+            Map<Integer, Integer> hits = new HashMap<>();
+            for (String trigram : nameTrigrams) {
+                List<Integer> entries = batchIndex.get(trigram);
+                if (entries != null) {
+                    for (Integer entry : entries) {
+                        Integer count = hits.get(entry);
+                        hits.put(entry, count == null ? 1 : count + 1);
+                    }
+                }
+            }
+            for (Integer entry : hits.keySet()) {
+                ContentValues other = batch.get(entry);
+                if (!isComparable(gender, weight, genderOf(other),
+                        other.getAsInteger(PetEntry.COLUMN_PET_WEIGHT))) {
+                    continue;
+                }
+                double score = score(nameTrigrams, breedTrigrams, batchNameTrigrams.get(entry),
+                        batchBreedTrigrams.get(entry));
+                if (score >= MIN_SCORE) {
+                    candidates.add(new Candidate(-1, entry,
+                            other.getAsString(PetEntry.COLUMN_PET_NAME),
+                            other.getAsString(PetEntry.COLUMN_PET_BREED), score));
+                }
+            }
+
+            Collections.sort(candidates, BY_SCORE);
+
+            for (String trigram : nameTrigrams) {
+                List<Integer> entries = batchIndex.get(trigram);
+                if (entries == null) {
+                    entries = new ArrayList<>();
+                    batchIndex.put(trigram, entries);
+                }
+                entries.add(i);
+            }
+            batchNameTrigrams.add(nameTrigrams);
+            batchBreedTrigrams.add(breedTrigrams);
+        }
+        return results;
+    }
+
+    /**
+     * Looks up the stored duplicates of every entry of a batch with a single query. The
+     * trigrams of all entries go into temporary tables that are joined with the index, and the
+     * short list of every entry is cut off in the query the same way a single lookup does it;
+     * the transaction around it is rolled back, which clears the tables again.
+     */
+    private static List<List<Candidate>> findStoredDuplicates(SQLiteDatabase database,
+                                                              List<ContentValues> batch) {
+        List<List<Candidate>> results = new ArrayList<>(batch.size());
+        List<Set<String>> nameTrigrams = new ArrayList<>(batch.size());
+        List<Set<String>> breedTrigrams = new ArrayList<>(batch.size());
+        for (ContentValues values : batch) {
+            results.add(new ArrayList<Candidate>());
+            nameTrigrams.add(trigrams(values.getAsString(PetEntry.COLUMN_PET_NAME), NAME_PREFIX));
+            breedTrigrams.add(trigrams(values.getAsString(PetEntry.COLUMN_PET_BREED),
+                    BREED_PREFIX));
+        }
+
+        // Holds the connection for this thread, so no other lookup sees the temporary tables
+        database.beginTransaction();
+        try {
+            // Keyed by entry first, as the lookup goes through them entry by entry
+            database.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + LOOKUP_TABLE
+                    + " (entry INTEGER NOT NULL, trigram TEXT NOT NULL,"
+                    + " PRIMARY KEY (entry, trigram));");
+            database.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + LOOKUP_BREED_TABLE
+                    + " (entry INTEGER NOT NULL, trigram TEXT NOT NULL,"
+                    + " PRIMARY KEY (entry, trigram));");
+            database.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + LOOKUP_ENTRY_TABLE
+                    + " (entry INTEGER PRIMARY KEY, min_hits INTEGER NOT NULL,"
+                    + " name TEXT NOT NULL, gender INTEGER NOT NULL,"
+                    + " min_weight INTEGER, max_weight INTEGER);");
+            database.execSQL("DELETE FROM " + LOOKUP_TABLE + ";");
+            database.execSQL("DELETE FROM " + LOOKUP_BREED_TABLE + ";");
+            database.execSQL("DELETE FROM " + LOOKUP_ENTRY_TABLE + ";");
+
+            SQLiteStatement frequency = compileFrequency(database);
+            SQLiteStatement insertTrigram = database.compileStatement("INSERT INTO "
+                    + LOOKUP_TABLE + " (entry, trigram) VALUES (?, ?)");
+            SQLiteStatement insertBreedTrigram = database.compileStatement("INSERT INTO "
+                    + LOOKUP_BREED_TABLE + " (entry, trigram) VALUES (?, ?)");
+            SQLiteStatement insertEntry = database.compileStatement("INSERT INTO "
+                    + LOOKUP_ENTRY_TABLE + " (entry, min_hits, name, gender, min_weight,"
+                    + " max_weight) VALUES (?, ?, ?, ?, ?, ?)");
+            boolean empty = true;
+            try {
+                // Names in a batch share most of their trigrams, so look each one up once
+                Map<String, Long> frequencies = new HashMap<>();
+                for (int i = 0; i < batch.size(); i++) {
+                    Lookup lookup = planLookup(frequency, frequencies, nameTrigrams.get(i));
+                    if (lookup == null) {
+                        continue;
+                    }
+                    empty = false;
+                    ContentValues values = batch.get(i);
+                    String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
+                    Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+                    insertEntry.bindLong(1, i);
+                    insertEntry.bindLong(2, lookup.minHits);
+                    insertEntry.bindString(3, name == null ? "" : name.trim());
+                    insertEntry.bindLong(4, genderOf(values));
+                    if (weight != null) {
+                        insertEntry.bindLong(5, weight - weightTolerance(weight));
+                        insertEntry.bindLong(6, weight + weightTolerance(weight));
+                    } else {
+                        insertEntry.bindNull(5);
+                        insertEntry.bindNull(6);
+                    }
+                    insertEntry.executeInsert();
+                    insertTrigrams(insertTrigram, i, lookup.trigrams);
+                    insertTrigrams(insertBreedTrigram, i, breedTrigrams.get(i));
+                }
+            } finally {
+                frequency.close();
+                insertTrigram.close();
+                insertBreedTrigram.close();
+                insertEntry.close();
+            }
+            if (empty) {
+                return results;
+            }
+
+            // The short list of every entry is a subquery of its own, as LIMIT cannot be
+            // applied per group otherwise without window functions. The subquery joins the
+            // entry again, since SQLite does not let its ORDER BY refer to the outer one.
+            String pet = "t." + PetTrigramEntry.COLUMN_PET_ID;
+            Cursor cursor = database.rawQuery("SELECT e.entry, " + CANDIDATE_COLUMNS
+                    + " FROM " + LOOKUP_ENTRY_TABLE + " e"
+                    + " JOIN " + PetEntry.TABLE_NAME + " p ON p." + PetEntry._ID + " IN ("
+                    + "SELECT " + pet + " FROM " + LOOKUP_TABLE + " l"
+                    + " JOIN " + LOOKUP_ENTRY_TABLE + " x ON x.entry = l.entry"
+                    + " JOIN " + PetTrigramEntry.TABLE_NAME + " t ON t."
+                    + PetTrigramEntry.COLUMN_TRIGRAM + " = l.trigram"
+                    + " JOIN " + PetEntry.TABLE_NAME + " c ON c." + PetEntry._ID + " = " + pet
+                    + " WHERE l.entry = e.entry"
+                    + " AND (x.gender = " + PetEntry.GENDER_UNKNOWN + " OR c."
+                    + PetEntry.COLUMN_PET_GENDER + " IN (x.gender, " + PetEntry.GENDER_UNKNOWN
+                    + "))"
+                    + " AND (x.min_weight IS NULL OR c." + PetEntry.COLUMN_PET_WEIGHT
+                    + " BETWEEN x.min_weight AND x.max_weight)"
+                    + " GROUP BY " + pet + " HAVING COUNT(*) >= MAX(x.min_hits)"
+                    + " ORDER BY COUNT(*) DESC, MAX(c." + PetEntry.COLUMN_PET_NAME
+                    + " = x.name COLLATE NOCASE) DESC,"
+                    + " (SELECT COUNT(*) FROM " + LOOKUP_BREED_TABLE + " lb"
+                    + " JOIN " + PetTrigramEntry.TABLE_NAME + " b ON b."
+                    + PetTrigramEntry.COLUMN_TRIGRAM + " = lb.trigram"
+                    + " WHERE lb.entry = l.entry AND b." + PetTrigramEntry.COLUMN_PET_ID
+                    + " = " + pet + ") DESC, " + pet
+                    + " LIMIT " + MAX_CANDIDATES + ")", null);
+            try {
+                while (cursor.moveToNext()) {
+                    int entry = cursor.getInt(0);
+                    addIfSimilar(results.get(entry), cursor, 1, nameTrigrams.get(entry),
+                            breedTrigrams.get(entry));
+                }
+            } finally {
+                cursor.close();
+            }
+            return results;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private static void insertTrigrams(SQLiteStatement insert, int entry,
+                                       Iterable<String> trigrams) {
+        for (String trigram : trigrams) {
+            insert.bindLong(1, entry);
+            insert.bindString(2, trigram);
+            insert.executeInsert();
+        }
+    }
+
+    private static void appendPlaceholders(StringBuilder sql, int count) {
+        for (int i = 0; i < count; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+    }
+
+    /**
+     * Compiles the statement that {@link #planLookup(SQLiteStatement, Map, Set)} reads the
+     * number of pets per trigram with.
+     */
+    private static SQLiteStatement compileFrequency(SQLiteDatabase database) {
+        return database.compileStatement("SELECT " + PetTrigramEntry.COLUMN_PET_COUNT + " FROM "
+                + PetTrigramEntry.COUNTS_TABLE_NAME + " WHERE "
+                + PetTrigramEntry.COLUMN_TRIGRAM + " = ?");
+    }
+
+    /**
+     * Picks the name trigrams to look candidates up by. Trigrams no pet has are left out, and
+     * so are those more than {@link #MAX_TRIGRAM_PETS} pets have, unless all of them are that
+     * common, in which case the rarest one is kept. A pet has to share enough of the rest to
+     * possibly reach {@link #MIN_SCORE}, assuming it shares every skipped trigram as well.
+     *
+     * @param frequencies pets per trigram that were already read, filled in as a side effect
+     * @return the lookup, or null if no stored pet shares a single trigram
+     */
+    private static Lookup planLookup(SQLiteStatement frequency, Map<String, Long> frequencies,
+                                     Set<String> nameTrigrams) {
+        List<String> trigrams = new ArrayList<>();
+        int skipped = 0;
+        String rarestSkipped = null;
+        long rarestSkippedPets = Long.MAX_VALUE;
+        for (String trigram : nameTrigrams) {
+            Long pets = frequencies.get(trigram);
+            if (pets == null) {
+                frequency.bindString(1, trigram);
+                try {
+                    pets = frequency.simpleQueryForLong();
+                } catch (SQLiteDoneException e) {
+                    // Not a single pet has this trigram
+                    pets = 0L;
+                }
+                frequencies.put(trigram, pets);
+            }
+            if (pets == 0) {
+                continue;
+            }
+            if (pets <= MAX_TRIGRAM_PETS) {
+                trigrams.add(trigram);
+            } else {
+                skipped++;
+                if (pets < rarestSkippedPets) {
+                    rarestSkipped = trigram;
+                    rarestSkippedPets = pets;
+                }
+            }
+        }
+        if (trigrams.isEmpty()) {
+            if (rarestSkipped == null) {
+                return null;
+            }
+            trigrams.add(rarestSkipped);
+            skipped--;
+        }
+        int minShared = (int) Math.ceil(MIN_NAME_SCORE * nameTrigrams.size());
+        return new Lookup(trigrams, Math.max(1, minShared - skipped));
+    }
+
+    /**
+     * Scores the pet in the current row of the cursor, which holds {@link #CANDIDATE_COLUMNS}
+     * from {@code firstColumn} on, and adds it if it is similar enough. The query already
+     * checked gender and weight.
+     */
+    private static void addIfSimilar(List<Candidate> candidates, Cursor cursor, int firstColumn,
+                                     Set<String> nameTrigrams, Set<String> breedTrigrams) {
+        String candidateName = cursor.getString(firstColumn + 1);
+        String candidateBreed = cursor.getString(firstColumn + 2);
+        double score = score(nameTrigrams, breedTrigrams, candidateName, candidateBreed);
+        if (score >= MIN_SCORE) {
+            candidates.add(new Candidate(cursor.getLong(firstColumn), -1, candidateName,
+                    candidateBreed, score));
+        }
+    }
+
+    private static int genderOf(ContentValues values) {
+        Integer gender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+        return gender == null ? PetEntry.GENDER_UNKNOWN : gender;
+    }
+
+    private static boolean isComparable(int gender, Integer weight, int otherGender,
+                                        Integer otherWeight) {
+        if (gender != PetEntry.GENDER_UNKNOWN && otherGender != PetEntry.GENDER_UNKNOWN
+                && otherGender != gender) {
+            return false;
+        }
+        if (weight != null && otherWeight != null) {
+            return Math.abs(weight - otherWeight) <= weightTolerance(weight);
+        }
+        return true;
+    }
+
+    /**
+     * Returns how many kilos a pet may weigh more or less than the given weight to be compared.
+     */
+    private static int weightTolerance(int weight) {
+        return Math.max(MIN_WEIGHT_TOLERANCE, (int) Math.ceil(weight * WEIGHT_TOLERANCE));
+    }
+
+    private static double score(Set<String> nameTrigrams, Set<String> breedTrigrams,
+                                String otherName, String otherBreed) {
+        return score(nameTrigrams, breedTrigrams, trigrams(otherName, NAME_PREFIX),
+                trigrams(otherBreed, BREED_PREFIX));
+    }
+
+    /**
+     * Weighted Jaccard similarity of name and breed trigrams. The breed only counts if both
+     * pets have one.
+     */
+    private static double score(Set<String> nameTrigrams, Set<String> breedTrigrams,
+                                Set<String> otherNameTrigrams, Set<String> otherBreedTrigrams) {
+        double nameScore = jaccard(nameTrigrams, otherNameTrigrams);
+        if (breedTrigrams.isEmpty() || otherBreedTrigrams.isEmpty()) {
+            return nameScore;
+        }
+        return NAME_WEIGHT * nameScore
+                + (1 - NAME_WEIGHT) * jaccard(breedTrigrams, otherBreedTrigrams);
+    }
+
+    private static double jaccard(Set<String> a, Set<String> b) {
+        if (a.isEmpty() || b.isEmpty()) {
+            return 0;
+        }
+        int shared = 0;
+        for (String trigram : a) {
+            if (b.contains(trigram)) {
+                shared++;
+            }
+        }
+        return (double) shared / (a.size() + b.size() - shared);
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+
+import java.io.Closeable;
+import java.util.AbstractList;
+
+/**
+ * Read-only list of {@link Pet}s backed by a cursor queried with {@link Pet#PROJECTION}. Pets
+ * are read when asked for, so a list of thousands of pets costs no more than the cursor window
+ * around the rows that are shown. Not thread safe; use it on one thread and close it once it is
+ * no longer shown.
+ */
+public final class PetList extends AbstractList<Pet> implements Closeable {
+
+    private final Cursor mCursor;
+
+    /**
+     * @param cursor the rows of the list, or null for an empty list; the list takes ownership
+     */
+    public PetList(Cursor cursor) {
+        mCursor = cursor;
+    }
+
+    @Override
+    public Pet get(int index) {
+        moveTo(index);
+        return Pet.fromCursor(mCursor);
+    }
+
+    /**
+     * Returns the id of the pet at the given position without reading the rest of the row.
+     */
+    public long getId(int index) {
+        moveTo(index);
+        return mCursor.getLong(0);
+    }
+
+    @Override
+    public int size() {
+        return mCursor == null || mCursor.isClosed() ? 0 : mCursor.getCount();
+    }
+
+    private void moveTo(int index) {
+        if (index < 0 || index >= size() || !mCursor.moveToPosition(index)) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mCursor != null) {
+            mCursor.close();
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package com.example.android.pets.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pets query as a stream of results. Every subscriber gets a {@link PetList} right away and a
+ * new one whenever the queried URI changes, without having to deal with content observers or
+ * threads. The lists read their pets from the cursor as they are shown, so a result of any size
+ * is delivered without copying its rows.
+ *
+ * Queries run on a scheduler shared by all streams and results are delivered on the main
+ * thread. Change notifications are debounced: the query runs once no change arrived for
+ * {@link #DEBOUNCE_MILLIS}, so a burst of writes leads to one query after it ends, and a burst
+ * that never pauses still gets a query every {@link #MAX_WAIT_MILLIS}. Notifications that arrive
+ * while a query runs lead to a single query afterwards. Subscribers control the flow with {@link Subscription#request(long)};
+ * while they have no outstanding demand no query runs, and once they ask again they get only
+ * the latest result.
+ */
+public class PetObservable {
+
+    /**
+     * Receives the results of a {@link PetObservable} on the main thread.
+     */
+    public interface Subscriber {
+
+        /**
+         * Receives the latest result. The subscriber owns the list and closes it once it shows
+         * a newer one, or nothing any more.
+         */
+        void onNext(PetList pets);
+
+        /**
+         * Called once if a query fails. No more results follow.
+         */
+        void onError(Throwable error);
+    }
+
+    /**
+     * Link between a {@link Subscriber} and the stream it subscribed to.
+     */
+    public interface Subscription {
+
+        /**
+         * Allows the stream to deliver {@code count} more results.
+         */
+        void request(long count);
+
+        /**
+         * Stops the stream and cancels its running query. Results that are already on their
+         * way are closed and dropped.
+         */
+        void cancel();
+    }
+
+    /** Quiet time after the last change before the query runs. */
+    private static final long DEBOUNCE_MILLIS = 100;
+
+    /** Longest a change waits for its query while further changes keep coming. */
+    private static final long MAX_WAIT_MILLIS = 1000;
+
+    private static final int SCHEDULER_THREADS = 2;
+
+    private static final ScheduledExecutorService SCHEDULER =
+            Executors.newScheduledThreadPool(SCHEDULER_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "PetObservable");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final ContentResolver mContentResolver;
+    private final Uri mUri;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final String mSortOrder;
+
+    public PetObservable(Context context, Uri uri, String selection, String[] selectionArgs,
+                         String sortOrder) {
+        mContentResolver = context.getApplicationContext().getContentResolver();
+        mUri = uri;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mSortOrder = sortOrder;
+    }
+
+    /**
+     * Stream of all pets.
+     */
+    public static PetObservable allPets(Context context) {
+        return new PetObservable(context, PetEntry.CONTENT_URI, null, null, null);
+    }
+
+    /**
+     * Subscribes without any limit on the number of results.
+     */
+    public Subscription subscribe(Subscriber subscriber) {
+        return subscribe(subscriber, Long.MAX_VALUE);
+    }
+
+    /**
+     * Subscribes and allows the stream to deliver {@code initialRequest} results before the
+     * subscriber has to request more.
+     */
+    public Subscription subscribe(Subscriber subscriber, long initialRequest) {
+        QuerySubscription subscription = new QuerySubscription(subscriber);
+        subscription.start(initialRequest);
+        return subscription;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private PetList load(CancellationSignal cancellationSignal) {
+        Cursor cursor;
+        if (cancellationSignal != null) {
+            cursor = mContentResolver.query(mUri, Pet.PROJECTION, mSelection, mSelectionArgs,
+                    mSortOrder, cancellationSignal);
+        } else {
+            cursor = mContentResolver.query(mUri, Pet.PROJECTION, mSelection, mSelectionArgs,
+                    mSortOrder);
+        }
+        if (cursor != null) {
+            try {
+                // Fills the first window here rather than on the main thread
+                cursor.getCount();
+            } catch (RuntimeException e) {
+                cursor.close();
+                throw e;
+            }
+        }
+        return new PetList(cursor);
+    }
+
+    private final class QuerySubscription implements Subscription, Runnable {
+
+        private static final long NO_CHANGE = -1;
+
+        private final Subscriber mSubscriber;
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+        // Called on whatever thread delivers the notification
+        private final ContentObserver mObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                synchronized (QuerySubscription.this) {
+                    mStale = true;
+                    long now = SystemClock.uptimeMillis();
+                    if (mFirstChangeMillis == NO_CHANGE) {
+                        mFirstChangeMillis = now;
+                    }
+                    debounce(now);
+                }
+            }
+        };
+
+        // All guarded by this
+        private long mRequested;
+        private boolean mStale = true;
+        private boolean mScheduled;
+        private boolean mRunning;
+        private boolean mCancelled;
+        private ScheduledFuture<?> mFuture;
+        /** Time of the first change the next query has to pick up, or {@link #NO_CHANGE}. */
+        private long mFirstChangeMillis = NO_CHANGE;
+        private CancellationSignal mCancellationSignal;
+
+        QuerySubscription(Subscriber subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        void start(long initialRequest) {
+            mContentResolver.registerContentObserver(mUri, true, mObserver);
+            request(initialRequest);
+        }
+
+        @Override
+        public void request(long count) {
+            if (count <= 0) {
+                throw new IllegalArgumentException("Requested count must be positive");
+            }
+            synchronized (this) {
+                // Saturate instead of overflowing
+                mRequested = mRequested + count < 0 ? Long.MAX_VALUE : mRequested + count;
+            }
+            schedule(0);
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+                mCancelled = true;
+                if (mFuture != null) {
+                    mFuture.cancel(false);
+                }
+                cancelQuery();
+            }
+            mContentResolver.unregisterContentObserver(mObserver);
+        }
+
+        /**
+         * Schedules a query unless one is already scheduled or running, the last result is still
+         * current, or the subscriber does not want more results.
+         */
+        private synchronized void schedule(long delayMillis) {
+            if (mCancelled || mScheduled || mRunning || !mStale || mRequested == 0) {
+                return;
+            }
+            mScheduled = true;
+            mFuture = SCHEDULER.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Moves a scheduled query back so it runs {@link #DEBOUNCE_MILLIS} after the latest
+         * change, but no later than {@link #MAX_WAIT_MILLIS} after the first one it has to pick
+         * up. Schedules it if none is scheduled yet.
+         */
+        private synchronized void debounce(long now) {
+            if (mScheduled && !mFuture.cancel(false)) {
+                // Already started; it sees the change or schedules another run when it is done
+                return;
+            }
+            mScheduled = false;
+            long deadline = mFirstChangeMillis + MAX_WAIT_MILLIS;
+            schedule(Math.max(0, Math.min(DEBOUNCE_MILLIS, deadline - now)));
+        }
+
+        @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+        private synchronized void cancelQuery() {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+        }
+
+        @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+        private CancellationSignal newCancellationSignal() {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                    ? new CancellationSignal() : null;
+        }
+
+        @Override
+        public void run() {
+            CancellationSignal cancellationSignal;
+            synchronized (this) {
+                mScheduled = false;
+                if (mCancelled) {
+                    return;
+                }
+                mRunning = true;
+                // Changes from here on need another query
+                mStale = false;
+                mFirstChangeMillis = NO_CHANGE;
+                mCancellationSignal = newCancellationSignal();
+                cancellationSignal = mCancellationSignal;
+            }
+
+            PetList pets = null;
+            RuntimeException error = null;
+            try {
+                pets = load(cancellationSignal);
+            } catch (RuntimeException e) {
+                error = e;
+            }
+
+            synchronized (this) {
+                mRunning = false;
+                mCancellationSignal = null;
+                if (mCancelled) {
+                    // Most likely the OperationCanceledException of the cancelled query
+                    if (pets != null) {
+                        pets.close();
+                    }
+                    return;
+                }
+                if (mRequested != Long.MAX_VALUE) {
+                    mRequested--;
+                }
+            }
+
+            if (error != null) {
+                deliverError(error);
+            } else {
+                deliver(pets);
+                // Catch up with changes that arrived while the query ran
+                synchronized (this) {
+                    if (mFirstChangeMillis != NO_CHANGE) {
+                        debounce(SystemClock.uptimeMillis());
+                    }
+                }
+            }
+        }
+
+        private void deliver(final PetList pets) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCancelled()) {
+                        pets.close();
+                    } else {
+                        mSubscriber.onNext(pets);
+                    }
+                }
+            });
+        }
+
+        private void deliverError(final Throwable error) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled()) {
+                        cancel();
+                        mSubscriber.onError(error);
+                    }
+                }
+            });
+        }
+
+        private synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * Stores pet photos as files in the app's private storage. The pets table only keeps the path
+ * in {@link PetContract.PetEntry#COLUMN_PET_PHOTO}, so the database stays small.
+ */
+public final class PetPhotoStore {
+
+    private static final String LOG_TAG = PetPhotoStore.class.getSimpleName();
+
+    private static final String PHOTO_DIRECTORY = "pet_photos";
+
+    private PetPhotoStore() {}
+
+    /**
+     * Returns the directory holding all pet photos, creating it if needed.
+     */
+    public static File getPhotoDirectory(Context context) {
+        File directory = new File(context.getFilesDir(), PHOTO_DIRECTORY);
+        if (!directory.isDirectory()) {
+            directory.mkdirs();
+        }
+        return directory;
+    }
+
+    /**
+     * Copies the image from the stream into a new file in the photo directory. Store the returned
+     * path in {@link PetContract.PetEntry#COLUMN_PET_PHOTO}.
+     */
+    public static String importPhoto(Context context, InputStream in) throws IOException {
+        File photo = new File(getPhotoDirectory(context), UUID.randomUUID() + ".jpg");
+        FileOutputStream out = new FileOutputStream(photo);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            photo.delete();
+            throw e;
+        } finally {
+            out.close();
+        }
+        return photo.getAbsolutePath();
+    }
+
+    /**
+     * Deletes photo files that no pet refers to any more. Paths outside of the photo directory
+     * are left alone, since the photo column can be written by any client of the provider.
+     */
+    public static void deletePhotos(Context context, Collection<String> paths) {
+        File directory = getPhotoDirectory(context);
+        for (String path : paths) {
+            File photo = new File(path);
+            if (!directory.equals(photo.getParentFile())) {
+                Log.w(LOG_TAG, "Not deleting " + path + ", it is not in " + directory);
+                continue;
+            }
+            if (!photo.delete() && photo.exists()) {
+                Log.w(LOG_TAG, "Cannot delete photo " + path);
+            }
+        }
+    }
+}
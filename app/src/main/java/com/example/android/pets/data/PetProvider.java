@@ -1,15 +1,34 @@
 package com.example.android.pets.data;
 
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.util.Log;
 
+import com.example.android.pets.data.PetContract.PetArchiveEntry;
+import com.example.android.pets.data.PetContract.PetChangeEntry;
+import com.example.android.pets.data.PetContract.PetDuplicateEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetWeightEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Created by admin on 5/29/2017.
@@ -20,6 +39,11 @@ public class PetProvider extends ContentProvider {
 
     private static final int PETS = 100;
     private static final int PET_ID = 101;
+    private static final int PET_CHANGES = 102;
+    private static final int PET_DUPLICATES = 103;
+    private static final int PET_WEIGHTS = 104;
+    private static final int ARCHIVED_PETS = 105;
+    private static final int ARCHIVED_PET_ID = 106;
 
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
@@ -33,11 +57,63 @@ public class PetProvider extends ContentProvider {
         // of the pets table.
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS, PETS);
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+
+        // The content URI of the form "content://com.example.android.pets/pets/changes?since=N"
+        // returns the latest change of every pet modified after sequence number N.
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_CHANGES, PET_CHANGES);
+
+        // The content URI of the form "content://com.example.android.pets/pets/duplicates?name=..."
+        // returns the stored pets that are likely the same animal as the described one.
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_DUPLICATES, PET_DUPLICATES);
+
+        // The content URI of the form "content://com.example.android.pets/pets/3/weights"
+        // holds the weight readings of the pet with id 3.
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/#/" + PetContract.PATH_WEIGHTS, PET_WEIGHTS);
+
+        // The content URIs of the form "content://com.example.android.pets/pets/archive" and
+        // ".../pets/archive/3" read the archived pets.
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_ARCHIVE, ARCHIVED_PETS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_ARCHIVE + "/#", ARCHIVED_PET_ID);
     }
 
 
     private PetDbHelper mDbHelper;
 
+    private PetChangeLog mChangeLog;
+
+    /** Upper bound of the memory used by cached query results. */
+    private static final long QUERY_CACHE_BYTES = 1024 * 1024;
+
+    private PetQueryCache mQueryCache;
+
+    private final PetQueryPlanTracer mPlanTracer = new PetQueryPlanTracer();
+
+    /**
+     * Every operation on the database holds the read side, a restore the write side. This way
+     * a restore waits for the operations in flight, and none of them runs into the closed helper
+     * or writes into the file that is about to be replaced. Cursors returned from a query keep
+     * their own reference to the database they came from, so they stay readable.
+     */
+    private final ReadWriteLock mDatabaseLock = new ReentrantReadWriteLock();
+
+    /**
+     * The pets table followed by the archived pets. A pet that was restored from a backup after
+     * it had been archived is in both; the copy in the pets table wins.
+     */
+    private static final String PETS_INCLUDING_ARCHIVED = "(SELECT " + PetArchiver.PET_COLUMNS
+            + " FROM main." + PetEntry.TABLE_NAME + " UNION ALL SELECT " + PetArchiver.PET_COLUMNS
+            + " FROM " + PetDbHelper.ARCHIVE_SCHEMA + "." + PetArchiveEntry.TABLE_NAME
+            + " WHERE " + PetEntry._ID + " NOT IN (SELECT " + PetEntry._ID + " FROM main."
+            + PetEntry.TABLE_NAME + "))";
+
+    private static final String ARCHIVED_PETS_TABLE =
+            PetDbHelper.ARCHIVE_SCHEMA + "." + PetArchiveEntry.TABLE_NAME;
+
     /**
      * Initialize the provider and the database helper object.
      */
@@ -48,6 +124,8 @@ public class PetProvider extends ContentProvider {
         // ContentProvider methods.
 
         mDbHelper = new PetDbHelper(getContext());
+        mChangeLog = new PetChangeLog(mDbHelper);
+        mQueryCache = new PetQueryCache(QUERY_CACHE_BYTES);
         return true;
     }
 
@@ -57,6 +135,45 @@ public class PetProvider extends ContentProvider {
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArg, String sortOrder) {
+        return query(uri, projection, selection, selectionArg, sortOrder, null);
+    }
+
+    /**
+     * Same as the query above, but SQLite stops reading as soon as the caller cancels the signal,
+     * for example when the user typed another letter into the catalog filter.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArg,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+        mDatabaseLock.readLock().lock();
+        try {
+            return queryLocked(uri, projection, selection, selectionArg, sortOrder,
+                    cancellationSignal);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private Cursor queryLocked(Uri uri, String[] projection, String selection,
+                               String[] selectionArg, String sortOrder,
+                               CancellationSignal cancellationSignal) {
+
+        // figure out if the URI mather can match the URI to a specific code
+        int match = sUriMatcher.match(uri);
+
+        // Rows of the pets table are served from the cache as long as nothing was written
+        String cacheKey = null;
+        long cacheGeneration = 0;
+        if (match == PETS || match == PET_ID) {
+            cacheKey = PetQueryCache.buildKey(uri, projection, selection, selectionArg, sortOrder);
+            Cursor cached = mQueryCache.get(cacheKey);
+            if (cached != null) {
+                cached.setNotificationUri(getContext().getContentResolver(), uri);
+                return cached;
+            }
+            cacheGeneration = mQueryCache.getGeneration();
+        }
 
         // Get readable database
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
@@ -65,8 +182,6 @@ public class PetProvider extends ContentProvider {
 
         Cursor cursor;
 
-        // figure out if the URI mather can match the URI to a specific code
-        int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
                 // For the PETS code, query the pets table directly with the given
@@ -74,15 +189,26 @@ public class PetProvider extends ContentProvider {
                 // could contain multiple rows of the pets table.
                 // TODO: Perform database query on pets table
 
+                // "?filter=ab" narrows the result down to pets whose name or breed starts with "ab"
+                String filter = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_FILTER);
+                if (filter != null && !filter.isEmpty()) {
+                    String[] bounds = buildPrefixBounds(filter);
+                    selection = DatabaseUtils.concatenateWhere(selection,
+                            "(" + PetEntry.COLUMN_PET_NAME + " >= ? COLLATE NOCASE AND "
+                                    + PetEntry.COLUMN_PET_NAME + " < ? COLLATE NOCASE) OR ("
+                                    + PetEntry.COLUMN_PET_BREED + " >= ? COLLATE NOCASE AND "
+                                    + PetEntry.COLUMN_PET_BREED + " < ? COLLATE NOCASE)");
+                    selectionArg = DatabaseUtils.appendSelectionArgs(selectionArg,
+                            new String[]{bounds[0], bounds[1], bounds[0], bounds[1]});
+                }
 
-                cursor = database.query(PetContract.PetEntry.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArg,
-                        null,
-                        null,
-                        sortOrder
-                );
+                // Only the pets in the shelter unless "?include_archived=true" asks for all
+                String table = Boolean.parseBoolean(uri.getQueryParameter(
+                        PetEntry.QUERY_PARAMETER_INCLUDE_ARCHIVED))
+                        ? PETS_INCLUDING_ARCHIVED : PetEntry.TABLE_NAME;
+
+                cursor = queryPets(database, uri, table, projection, selection, selectionArg,
+                        sortOrder, cancellationSignal);
 
                 break;
             case PET_ID:
@@ -101,21 +227,186 @@ public class PetProvider extends ContentProvider {
                 //this will perform a query on the pets table where the  _id equals 3 to return a
                 //Cursor containing that row of the table
 
-                cursor = database.query(PetContract.PetEntry.TABLE_NAME, projection, selection, selectionArg, null, null, sortOrder);
+                cursor = queryPets(database, uri, PetEntry.TABLE_NAME, projection, selection,
+                        selectionArg, sortOrder, cancellationSignal);
+                break;
+            case ARCHIVED_PETS:
+                cursor = queryPets(database, uri, ARCHIVED_PETS_TABLE, projection, selection,
+                        selectionArg, sortOrder, cancellationSignal);
+                break;
+            case ARCHIVED_PET_ID:
+                selection = PetArchiveEntry._ID + "=?";
+                selectionArg = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                cursor = queryPets(database, uri, ARCHIVED_PETS_TABLE, projection, selection,
+                        selectionArg, sortOrder, cancellationSignal);
+                break;
+            case PET_CHANGES:
+                // Without "since" the client gets every change still in the log
+                long since = 0;
+                String sinceParameter = uri.getQueryParameter(PetChangeEntry.QUERY_PARAMETER_SINCE);
+                if (sinceParameter != null) {
+                    try {
+                        since = Long.parseLong(sinceParameter);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid change sequence in " + uri);
+                    }
+                }
+                cursor = mChangeLog.queryChangesSince(since, projection, selection, selectionArg, sortOrder);
+                break;
+            case PET_DUPLICATES:
+                cursor = queryDuplicates(database, uri);
+                break;
+            case PET_WEIGHTS:
+                cursor = queryWeights(database, uri);
                 break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
 
+        if (cacheKey != null) {
+            cursor = mQueryCache.put(cacheKey, cacheGeneration, cursor);
+        }
+
+        // Let the cursor know which URI to watch, so observers re-query after a write
+        if (cursor != null) {
+            cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        }
+
         return cursor;
     }
 
+    /**
+     * Looks up the likely duplicates of the pet described by the query parameters of the URI.
+     */
+    private static Cursor queryDuplicates(SQLiteDatabase database, Uri uri) {
+        String name = uri.getQueryParameter(PetEntry.COLUMN_PET_NAME);
+        if (name == null) {
+            throw new IllegalArgumentException("Duplicate check requires a name " + uri);
+        }
+        String breed = uri.getQueryParameter(PetEntry.COLUMN_PET_BREED);
+        int gender = PetEntry.GENDER_UNKNOWN;
+        Integer weight = null;
+        try {
+            String genderParameter = uri.getQueryParameter(PetEntry.COLUMN_PET_GENDER);
+            if (genderParameter != null) {
+                gender = Integer.parseInt(genderParameter);
+            }
+            String weightParameter = uri.getQueryParameter(PetEntry.COLUMN_PET_WEIGHT);
+            if (weightParameter != null) {
+                weight = Integer.valueOf(weightParameter);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid gender or weight in " + uri);
+        }
+
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                PetDuplicateEntry._ID,
+                PetEntry.COLUMN_PET_NAME,
+                PetEntry.COLUMN_PET_BREED,
+                PetDuplicateEntry.COLUMN_SCORE});
+        for (PetDuplicateDetector.Candidate candidate : PetDuplicateDetector.findDuplicates(
+                database, name, breed, gender, weight, -1)) {
+            cursor.addRow(new Object[]{candidate.petId, candidate.name, candidate.breed,
+                    candidate.score});
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns the weight series of the pet in the URI, see {@link PetWeightEntry}.
+     */
+    private static Cursor queryWeights(SQLiteDatabase database, Uri uri) {
+        String resolution = uri.getQueryParameter(PetWeightEntry.QUERY_PARAMETER_RESOLUTION);
+        long from = 0;
+        long to = Long.MAX_VALUE;
+        try {
+            String fromParameter = uri.getQueryParameter(PetWeightEntry.QUERY_PARAMETER_FROM);
+            if (fromParameter != null) {
+                from = Math.max(0, Long.parseLong(fromParameter));
+            }
+            String toParameter = uri.getQueryParameter(PetWeightEntry.QUERY_PARAMETER_TO);
+            if (toParameter != null) {
+                to = Long.parseLong(toParameter);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid time range in " + uri);
+        }
+        // The history of an archived pet moved along with it
+        long petId = parseWeightsPetId(uri);
+        String schema = DatabaseUtils.queryNumEntries(database, PetEntry.TABLE_NAME,
+                PetEntry._ID + "=?", new String[]{String.valueOf(petId)}) == 0
+                && PetArchiver.isArchived(database, petId) ? PetDbHelper.ARCHIVE_SCHEMA : "main";
+        return PetWeightHistory.querySeries(database, schema, petId,
+                resolution == null ? PetWeightEntry.RESOLUTION_RAW : resolution, from, to);
+    }
+
+    private static long parseWeightsPetId(Uri uri) {
+        // "pets/<id>/weights"
+        return Long.parseLong(uri.getPathSegments().get(1));
+    }
+
+    private Cursor queryPets(SQLiteDatabase database, Uri uri, String table, String[] projection,
+                             String selection, String[] selectionArgs, String sortOrder,
+                             CancellationSignal cancellationSignal) {
+        if (mPlanTracer.isEnabled()) {
+            mPlanTracer.trace(database, "query", uri, SQLiteQueryBuilder.buildQueryString(false,
+                    table, projection, selection, null, null, sortOrder, null), selectionArgs);
+        }
+        if (cancellationSignal == null) {
+            return database.query(table, projection, selection, selectionArgs,
+                    null, null, sortOrder);
+        }
+        return database.query(false, table, projection, selection, selectionArgs,
+                null, null, sortOrder, null, cancellationSignal);
+    }
+
+    /**
+     * Returns the range [lower, upper) that holds every string starting with the prefix under
+     * the NOCASE collation. Unlike LIKE, a range can be answered from the NOCASE indexes on name
+     * and breed.
+     */
+    static String[] buildPrefixBounds(String prefix) {
+        // NOCASE only folds ASCII letters, and compares them in lower case
+        StringBuilder lower = new StringBuilder(prefix.length());
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            lower.append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+        }
+
+        // The upper bound is the prefix with its last character incremented
+        StringBuilder upper = new StringBuilder(lower);
+        int last = upper.length() - 1;
+        while (last >= 0 && upper.charAt(last) == Character.MAX_VALUE) {
+            upper.setLength(last--);
+        }
+        if (last < 0) {
+            // Nothing sorts after this prefix
+            return new String[]{lower.toString(), String.valueOf(Character.MAX_VALUE)};
+        }
+        char next = (char) (upper.charAt(last) + 1);
+        if (next >= 'A' && next <= 'Z') {
+            // Upper case letters fold away, so the next character NOCASE can tell apart is '['
+            next = '[';
+        }
+        upper.setCharAt(last, next);
+        return new String[]{lower.toString(), upper.toString()};
+    }
+
     /**
      * Insert new data into the provider with the given ContentValues.
      */
 
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        mDatabaseLock.readLock().lock();
+        try {
+            return insertLocked(uri, contentValues);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private Uri insertLocked(Uri uri, ContentValues contentValues) {
 
 
 
@@ -124,12 +415,155 @@ public class PetProvider extends ContentProvider {
         switch (match) {
             case PETS:
                 return insertPet(uri, contentValues);
+            case PET_WEIGHTS:
+                bulkInsertLocked(uri, new ContentValues[]{contentValues});
+                return uri;
             default:
                 throw new IllegalArgumentException("Insention is not supported for " + uri);
         }
 
     }
 
+    /**
+     * Inserts a batch of pets or weight readings in one transaction.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        mDatabaseLock.readLock().lock();
+        try {
+            return bulkInsertLocked(uri, values);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private int bulkInsertLocked(Uri uri, ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case PETS:
+                return bulkInsertPets(values, Boolean.parseBoolean(uri.getQueryParameter(
+                        PetEntry.QUERY_PARAMETER_BULK_LOAD)));
+            case PET_WEIGHTS:
+                return bulkInsertWeights(uri, values);
+            default:
+                throw new IllegalArgumentException("Insention is not supported for " + uri);
+        }
+    }
+
+    /**
+     * Inserts many pets at once, e.g. from {@link PetDataGenerator}. All statements are compiled
+     * once for the batch, and caches, change log and observers hear about it once.
+     *
+     * @param bulkLoad leave the trigrams and weight readings to {@link #finishBulkLoad()}
+     */
+    private int bulkInsertPets(ContentValues[] values, boolean bulkLoad) {
+        for (ContentValues contentValues : values) {
+            validatePet(contentValues);
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long now = System.currentTimeMillis();
+
+        database.beginTransaction();
+        SQLiteStatement insert = database.compileStatement("INSERT INTO " + PetEntry.TABLE_NAME
+                + " (" + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ", "
+                + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ", "
+                + PetEntry.COLUMN_PET_PHOTO + ", " + PetEntry.COLUMN_PET_STATUS + ", "
+                + PetEntry.COLUMN_PET_STATUS_CHANGED + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+        SQLiteStatement trigrams = PetDuplicateDetector.compileIndex(database);
+        SQLiteStatement readings = PetWeightHistory.compileAppend(database);
+        try {
+            for (ContentValues contentValues : values) {
+                String name = contentValues.getAsString(PetEntry.COLUMN_PET_NAME);
+                String breed = contentValues.getAsString(PetEntry.COLUMN_PET_BREED);
+                Integer weight = contentValues.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+                String photo = contentValues.getAsString(PetEntry.COLUMN_PET_PHOTO);
+
+                insert.bindString(1, name);
+                bindStringOrNull(insert, 2, breed);
+                insert.bindLong(3, contentValues.getAsInteger(PetEntry.COLUMN_PET_GENDER));
+                insert.bindLong(4, weight == null ? 0 : weight);
+                bindStringOrNull(insert, 5, photo);
+                Integer status = contentValues.getAsInteger(PetEntry.COLUMN_PET_STATUS);
+                insert.bindLong(6, status == null ? PetEntry.STATUS_AVAILABLE : status);
+                insert.bindLong(7, status == null ? 0 : now);
+                long id = insert.executeInsert();
+
+                if (bulkLoad) {
+                    continue;
+                }
+                PetDuplicateDetector.indexNewPet(trigrams, id, name, breed);
+                if (weight != null) {
+                    PetWeightHistory.append(readings, id, now, weight);
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            insert.close();
+            trigrams.close();
+            readings.close();
+            database.endTransaction();
+        }
+
+        onPetsChanged(values.length);
+        return values.length;
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Appends a batch of weight readings to the history of one pet.
+     */
+    private int bulkInsertWeights(Uri uri, ContentValues[] values) {
+        long petId = parseWeightsPetId(uri);
+        long now = System.currentTimeMillis();
+        ContentValues[] readings = new ContentValues[values.length];
+        for (int i = 0; i < values.length; i++) {
+            Integer weight = values[i].getAsInteger(PetWeightEntry.COLUMN_WEIGHT);
+            if (weight == null || weight <= 0 || weight > 120) {
+                throw new IllegalArgumentException("Pet weight should NOT be less than 1 and more then 120");
+            }
+            Long timestamp = values[i].getAsLong(PetWeightEntry.COLUMN_TIMESTAMP);
+            if (timestamp != null && timestamp < 0) {
+                throw new IllegalArgumentException("Weight reading requires a timestamp after the epoch");
+            }
+            readings[i] = new ContentValues();
+            readings[i].put(PetWeightEntry.COLUMN_WEIGHT, weight);
+            readings[i].put(PetWeightEntry.COLUMN_TIMESTAMP, timestamp == null ? now : timestamp);
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        int appended;
+        boolean weightChanged;
+        database.beginTransaction();
+        try {
+            if (DatabaseUtils.queryNumEntries(database, PetEntry.TABLE_NAME, PetEntry._ID + "=?",
+                    new String[]{String.valueOf(petId)}) == 0) {
+                throw new IllegalArgumentException("Unknown pet " + uri);
+            }
+            appended = PetWeightHistory.appendReadings(database, petId, readings);
+            weightChanged = appended > 0 && PetWeightHistory.syncCurrentWeight(database, petId);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (weightChanged) {
+            // Also reaches the weights URI, which lives below the pets
+            onPetsChanged(1);
+        } else if (appended > 0) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return appended;
+    }
+
     /**
      * insert a pet into the db with the given content values. Return the new content URI
      * for that specific row in the db
@@ -138,6 +572,44 @@ public class PetProvider extends ContentProvider {
     private Uri insertPet(Uri uri, ContentValues contentValues) {
 
         //sanity checks
+        validatePet(contentValues);
+        contentValues = stampStatusChange(contentValues);
+        String name = contentValues.getAsString(PetContract.PetEntry.COLUMN_PET_NAME);
+        Integer weight = contentValues.getAsInteger(PetContract.PetEntry.COLUMN_PET_WEIGHT);
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        // The pet and its trigrams for the duplicate check are written together
+        long id;
+        database.beginTransaction();
+        try {
+            id = database.insert(PetContract.PetEntry.TABLE_NAME, null, contentValues);
+            if (id != -1) {
+                PetDuplicateDetector.indexPet(database, id, name,
+                        contentValues.getAsString(PetEntry.COLUMN_PET_BREED));
+                if (weight != null) {
+                    PetWeightHistory.appendReading(database, id, System.currentTimeMillis(), weight);
+                }
+                database.setTransactionSuccessful();
+            }
+        } finally {
+            database.endTransaction();
+        }
+
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for" + uri);
+            return null;
+        }
+
+        onPetsChanged(1);
+
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Checks the values of a new pet and throws an IllegalArgumentException if they are invalid.
+     */
+    private static void validatePet(ContentValues contentValues) {
         String name = contentValues.getAsString(PetContract.PetEntry.COLUMN_PET_NAME);
         if (name == null){
             //Log.e(LOG_TAG,"LOG pet required a name");
@@ -155,16 +627,25 @@ public class PetProvider extends ContentProvider {
             throw new IllegalArgumentException("Pet weight should NOT be less than 1 and more then 120");
         }
 
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
-
-        long id = database.insert(PetContract.PetEntry.TABLE_NAME, null, contentValues);
-
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for" + uri);
-            return null;
+        if (contentValues.containsKey(PetEntry.COLUMN_PET_STATUS)) {
+            Integer status = contentValues.getAsInteger(PetEntry.COLUMN_PET_STATUS);
+            if (status == null || !isValidStatus(status)) {
+                throw new IllegalArgumentException("Pet requires valid status");
+            }
         }
+    }
 
-        return ContentUris.withAppendedId(uri, id);
+    /**
+     * Records when the status was set, which the archival job goes by. Returns a copy, so the
+     * values of the caller stay as they were.
+     */
+    private static ContentValues stampStatusChange(ContentValues contentValues) {
+        if (!contentValues.containsKey(PetEntry.COLUMN_PET_STATUS)) {
+            return contentValues;
+        }
+        ContentValues stamped = new ContentValues(contentValues);
+        stamped.put(PetEntry.COLUMN_PET_STATUS_CHANGED, System.currentTimeMillis());
+        return stamped;
     }
 
     /**
@@ -172,6 +653,16 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+        mDatabaseLock.readLock().lock();
+        try {
+            return updateLocked(uri, contentValues, selection, selectionArgs);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private int updateLocked(Uri uri, ContentValues contentValues, String selection,
+                             String[] selectionArgs) {
         final int match =sUriMatcher.match(uri);
         switch (match){
             case PETS:
@@ -217,42 +708,185 @@ public class PetProvider extends ContentProvider {
             }
         }
 
+        // If the {@link PetEntry#COLUMN_PET_STATUS} key is present,
+        // check that the status value is valid.
+        if (contentValues.containsKey(PetEntry.COLUMN_PET_STATUS)){
+            Integer status = contentValues.getAsInteger(PetEntry.COLUMN_PET_STATUS);
+            if (status == null || !isValidStatus(status)){
+                throw new IllegalArgumentException("Pet requires valid status");
+            }
+        }
+
         // If there are no values to update, then don't try to update the database
         if (contentValues.size() ==0){
             return 0;
         }
 
+        contentValues = stampStatusChange(contentValues);
+
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        tracePetsWhere(database, "update", uri, selection, selectionArgs);
 
-        int id = database.update(PetEntry.TABLE_NAME,contentValues,selection,selectionArgs);
+        // A new name or breed needs new trigrams for the duplicate check, a new weight goes into
+        // the weight history and a new photo replaces the file of the old one
+        boolean reindex = contentValues.containsKey(PetEntry.COLUMN_PET_NAME)
+                || contentValues.containsKey(PetEntry.COLUMN_PET_BREED);
+        Integer weight = contentValues.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+        boolean newPhoto = contentValues.containsKey(PetEntry.COLUMN_PET_PHOTO);
+        String photo = contentValues.getAsString(PetEntry.COLUMN_PET_PHOTO);
+        List<String> oldPhotos = new ArrayList<>();
+        if (!reindex && weight == null && !newPhoto) {
+            int id = database.update(PetEntry.TABLE_NAME,contentValues,selection,selectionArgs);
+            onPetsChanged(id);
+            return id;
+        }
 
+        int id;
+        database.beginTransaction();
+        try {
+            // Collect the pets first, the update may change what the selection matches
+            List<Long> petIds = new ArrayList<>();
+            List<Integer> oldWeights = new ArrayList<>();
+            Cursor cursor = database.query(PetEntry.TABLE_NAME,
+                    new String[]{PetEntry._ID, PetEntry.COLUMN_PET_WEIGHT,
+                            PetEntry.COLUMN_PET_PHOTO},
+                    selection, selectionArgs, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    petIds.add(cursor.getLong(0));
+                    oldWeights.add(cursor.getInt(1));
+                    String oldPhoto = cursor.getString(2);
+                    if (newPhoto && oldPhoto != null && !oldPhoto.equals(photo)) {
+                        oldPhotos.add(oldPhoto);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            id = database.update(PetEntry.TABLE_NAME,contentValues,selection,selectionArgs);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < petIds.size(); i++) {
+                if (reindex) {
+                    PetDuplicateDetector.reindexPet(database, petIds.get(i));
+                }
+                if (weight != null && weight.intValue() != oldWeights.get(i)) {
+                    PetWeightHistory.appendReading(database, petIds.get(i), now, weight);
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        PetPhotoStore.deletePhotos(getContext(), oldPhotos);
+        onPetsChanged(id);
         return id;
 
 
     }
+    /**
+     * Traces the row lookup of an update or delete on the pets table. SQLite finds the rows to
+     * change the same way it would select them, so the plan of the SELECT is the one that counts.
+     */
+    private void tracePetsWhere(SQLiteDatabase database, String operation, Uri uri,
+                                String selection, String[] selectionArgs) {
+        if (mPlanTracer.isEnabled()) {
+            mPlanTracer.trace(database, operation, uri, SQLiteQueryBuilder.buildQueryString(false,
+                    PetEntry.TABLE_NAME, new String[]{PetEntry._ID}, selection,
+                    null, null, null, null), selectionArgs);
+        }
+    }
+
     /**
      * Delete the data at the given selection and selection arguments.
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        mDatabaseLock.readLock().lock();
+        try {
+            return deleteLocked(uri, selection, selectionArgs);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private int deleteLocked(Uri uri, String selection, String[] selectionArgs) {
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
+        int rowsDeleted;
         final int match = sUriMatcher.match(uri);
         switch (match){
             case PETS:
 
                 // Delete all rows that match the selection and selection args
-                return database.delete(PetEntry.TABLE_NAME,selection,selectionArgs);
+                tracePetsWhere(database, "delete", uri, selection, selectionArgs);
+                rowsDeleted = deletePets(database, selection, selectionArgs);
+                break;
             case PET_ID:
                 // Delete a single row given by the ID in the URI
                 selection = PetEntry._ID +"=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                return database.delete(PetEntry.TABLE_NAME,selection,selectionArgs);
+                tracePetsWhere(database, "delete", uri, selection, selectionArgs);
+                rowsDeleted = deletePets(database, selection, selectionArgs);
+                break;
             default:
                 throw  new IllegalArgumentException("Deletion is not supported for " + uri);
 
         }
 
+        onPetsChanged(rowsDeleted);
+        return rowsDeleted;
+
+    }
+
+    /**
+     * Deletes the matching pets and then the photo files they owned.
+     */
+    private int deletePets(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        List<String> photos = new ArrayList<>();
+        int rowsDeleted;
+        database.beginTransaction();
+        try {
+            Cursor cursor = database.query(PetEntry.TABLE_NAME,
+                    new String[]{PetEntry.COLUMN_PET_PHOTO},
+                    DatabaseUtils.concatenateWhere(selection,
+                            PetEntry.COLUMN_PET_PHOTO + " IS NOT NULL"),
+                    selectionArgs, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    photos.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // Only once the rows are gone for good
+        PetPhotoStore.deletePhotos(getContext(), photos);
+        return rowsDeleted;
+    }
+
+    /**
+     * Called after rows of the pets table were written.
+     */
+    private void onPetsChanged(int count) {
+        if (count > 0) {
+            mQueryCache.invalidate();
+            mChangeLog.onRowsChanged(count);
+            notifyPetsChanged();
+        }
+    }
+
+    /**
+     * Notifies everyone watching the pets table, a single pet or the change log.
+     */
+    private void notifyPetsChanged() {
+        getContext().getContentResolver().notifyChange(PetEntry.CONTENT_URI, null);
     }
 
     /**
@@ -266,12 +900,172 @@ public class PetProvider extends ContentProvider {
                 return PetEntry.CONTENT_LIST_TYPE;
             case PET_ID:
                 return  PetEntry.CONTENT_ITEM_TYPE;
+            case PET_CHANGES:
+                return PetChangeEntry.CONTENT_LIST_TYPE;
+            case PET_DUPLICATES:
+                return PetDuplicateEntry.CONTENT_LIST_TYPE;
+            case PET_WEIGHTS:
+                return PetWeightEntry.CONTENT_LIST_TYPE;
+            case ARCHIVED_PETS:
+                return PetArchiveEntry.CONTENT_LIST_TYPE;
+            case ARCHIVED_PET_ID:
+                return PetArchiveEntry.CONTENT_ITEM_TYPE;
             default:
                 throw new IllegalArgumentException("Unknown " + uri + "with match)");
         }
 
     }
 
+    /**
+     * Handles the provider specific methods declared in {@link PetContract}.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        // A restore takes the write side of the lock itself, once its copy of the file is ready
+        if (PetContract.METHOD_RESTORE.equals(method)) {
+            return restore(arg);
+        }
+        mDatabaseLock.readLock().lock();
+        try {
+            return callLocked(method, arg, extras);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private Bundle restore(String source) {
+        if (source == null) {
+            throw new IllegalArgumentException("Restore requires a source path");
+        }
+        try {
+            new PetDbSnapshot(getContext(), mDbHelper).restore(new File(source),
+                    mDatabaseLock.writeLock());
+            mQueryCache.invalidate();
+            notifyPetsChanged();
+            return null;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Restore from " + source + " failed", e);
+            throw new IllegalStateException("Restore from " + source + " failed", e);
+        }
+    }
+
+    private Bundle callLocked(String method, String arg, Bundle extras) {
+        if (PetContract.METHOD_BACKUP.equals(method)) {
+            if (arg == null) {
+                throw new IllegalArgumentException("Backup requires a destination path");
+            }
+            try {
+                long sequence = new PetDbSnapshot(getContext(), mDbHelper).backup(new File(arg));
+                Bundle result = new Bundle();
+                result.putLong(PetContract.EXTRA_SEQUENCE, sequence);
+                return result;
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Backup to " + arg + " failed", e);
+                throw new IllegalStateException("Backup to " + arg + " failed", e);
+            }
+        } else if (PetContract.METHOD_FIND_DUPLICATES.equals(method)) {
+            if (extras == null || extras.getParcelableArrayList(PetContract.EXTRA_PETS) == null) {
+                throw new IllegalArgumentException("Duplicate check requires a list of pets");
+            }
+            List<ContentValues> batch = extras.getParcelableArrayList(PetContract.EXTRA_PETS);
+            return findDuplicates(batch);
+        } else if (PetContract.METHOD_ARCHIVE.equals(method)) {
+            int days = PetContract.DEFAULT_ARCHIVE_AFTER_DAYS;
+            if (arg != null) {
+                try {
+                    days = Integer.parseInt(arg);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid number of days " + arg);
+                }
+            }
+            long cutoff = System.currentTimeMillis() - days * PetWeightHistory.DAY_MILLIS;
+            int archived = new PetArchiver(getContext(), mDbHelper).archive(cutoff);
+            onPetsChanged(archived);
+            Bundle result = new Bundle();
+            result.putInt(PetContract.EXTRA_COUNT, archived);
+            return result;
+        } else if (PetContract.METHOD_FINISH_BULK_LOAD.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(PetContract.EXTRA_COUNT, finishBulkLoad());
+            return result;
+        } else if (PetContract.METHOD_TRACE_QUERY_PLANS.equals(method)) {
+            mPlanTracer.setEnabled(arg == null || Boolean.parseBoolean(arg));
+            return null;
+        } else if (PetContract.METHOD_QUERY_PLAN_REPORT.equals(method)) {
+            Bundle result = new Bundle();
+            result.putString(PetContract.EXTRA_REPORT,
+                    mPlanTracer.buildReport(Boolean.parseBoolean(arg)));
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Builds the trigrams and first weight readings that bulk loads left out, see
+     * {@link PetContract#METHOD_FINISH_BULK_LOAD}.
+     *
+     * @return the number of pets indexed
+     */
+    private int finishBulkLoad() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int indexed;
+        database.beginTransaction();
+        try {
+            indexed = PetDuplicateDetector.indexMissingPets(database);
+            PetWeightHistory.startMissingHistories(database, System.currentTimeMillis());
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (indexed > 0) {
+            // The pets themselves did not change, but their duplicates and weights did
+            mQueryCache.invalidate();
+            notifyPetsChanged();
+        }
+        return indexed;
+    }
+
+    /**
+     * Checks an import batch for duplicates and flattens the result into parallel arrays, see
+     * {@link PetContract#METHOD_FIND_DUPLICATES}.
+     */
+    private Bundle findDuplicates(List<ContentValues> batch) {
+        List<List<PetDuplicateDetector.Candidate>> results =
+                PetDuplicateDetector.findDuplicates(mDbHelper.getReadableDatabase(), batch);
+
+        int count = 0;
+        for (List<PetDuplicateDetector.Candidate> candidates : results) {
+            count += candidates.size();
+        }
+
+        int[] entries = new int[count];
+        long[] petIds = new long[count];
+        int[] batchIndexes = new int[count];
+        double[] scores = new double[count];
+        int position = 0;
+        for (int entry = 0; entry < results.size(); entry++) {
+            for (PetDuplicateDetector.Candidate candidate : results.get(entry)) {
+                entries[position] = entry;
+                petIds[position] = candidate.petId;
+                batchIndexes[position] = candidate.batchIndex;
+                scores[position] = candidate.score;
+                position++;
+            }
+        }
+
+        Bundle result = new Bundle();
+        result.putIntArray(PetContract.EXTRA_ENTRY, entries);
+        result.putLongArray(PetContract.EXTRA_PET_ID, petIds);
+        result.putIntArray(PetContract.EXTRA_BATCH_INDEX, batchIndexes);
+        result.putDoubleArray(PetContract.EXTRA_SCORE, scores);
+        return result;
+    }
+
+    public static boolean isValidStatus(int status) {
+        return status == PetEntry.STATUS_AVAILABLE || status == PetEntry.STATUS_ADOPTED;
+    }
+
     public static boolean isValidGender(int gender){
         if (gender == PetEntry.GENDER_UNKNOWN ||
                 gender == PetEntry.GENDER_MALE ||
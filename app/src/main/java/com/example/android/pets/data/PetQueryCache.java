@@ -0,0 +1,351 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of query results for {@link PetProvider}. Results are kept as immutable snapshots
+ * keyed by the normalized shape of the query, and served as cursors that read straight from the
+ * snapshot. Every write through the provider bumps a generation counter, which drops the whole
+ * cache; a result is only stored if no write happened while it was being read.
+ */
+public class PetQueryCache {
+
+    /** Results with more rows than this are never cached, so SQLite can page them lazily. */
+    private static final int MAX_CACHED_ROWS = 2000;
+
+    /** Rough overhead of an object in bytes, used to estimate the size of a snapshot. */
+    private static final int OBJECT_OVERHEAD = 16;
+
+    private final long mMaxBytes;
+
+    /** Access ordered, so iteration starts at the least recently used entry. */
+    private final LinkedHashMap<String, Snapshot> mEntries =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    private long mSizeBytes;
+
+    private long mGeneration;
+
+    public PetQueryCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Builds the cache key of a query. Whitespace in the selection and sort order is collapsed
+     * so that queries differing only in formatting share an entry; text in quotes is kept as
+     * is. Projection and arguments are encoded so that no two different lists share a key.
+     */
+    public static String buildKey(Uri uri, String[] projection, String selection,
+                                  String[] selectionArgs, String sortOrder) {
+        StringBuilder key = new StringBuilder(uri.toString());
+        key.append('\u0001');
+        appendList(key, projection);
+        key.append('\u0001').append(normalize(selection));
+        key.append('\u0001');
+        appendList(key, selectionArgs);
+        key.append('\u0001').append(normalize(sortOrder));
+        return key.toString();
+    }
+
+    /**
+     * Appends the number of values and then every value prefixed by its length, or "n" for
+     * null, so separators inside a value cannot be mistaken for the end of it.
+     */
+    private static void appendList(StringBuilder key, String[] values) {
+        if (values == null) {
+            key.append('n');
+            return;
+        }
+        key.append(values.length);
+        for (String value : values) {
+            if (value == null) {
+                key.append(",n");
+            } else {
+                key.append(',').append(value.length()).append(':').append(value);
+            }
+        }
+    }
+
+    /**
+     * Trims the clause and collapses runs of whitespace into one space, except inside string
+     * literals and quoted identifiers, where whitespace is part of the value.
+     */
+    private static String normalize(String clause) {
+        if (clause == null) {
+            return "";
+        }
+        String trimmed = clause.trim();
+        StringBuilder normalized = new StringBuilder(trimmed.length());
+        char quote = 0;
+        boolean inWhitespace = false;
+        for (int i = 0; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if (quote != 0) {
+                // A doubled quote is an escaped quote, and toggling twice keeps us inside
+                if (c == quote) {
+                    quote = 0;
+                }
+                normalized.append(c);
+            } else if (Character.isWhitespace(c)) {
+                inWhitespace = true;
+            } else {
+                if (inWhitespace) {
+                    normalized.append(' ');
+                    inWhitespace = false;
+                }
+                if (c == '\'' || c == '"' || c == '`') {
+                    quote = c;
+                } else if (c == '[') {
+                    quote = ']';
+                }
+                normalized.append(c);
+            }
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Returns the current generation. Read it before running a query and hand it to
+     * {@link #put(String, long, Cursor)} afterwards.
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Drops every cached result. Called after every write to the pets table.
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mEntries.clear();
+        mSizeBytes = 0;
+    }
+
+    /**
+     * Returns a cursor over the cached result for the key, or null if there is none.
+     */
+    public Cursor get(String key) {
+        Snapshot snapshot;
+        synchronized (this) {
+            snapshot = mEntries.get(key);
+        }
+        return snapshot == null ? null : new SnapshotCursor(snapshot);
+    }
+
+    /**
+     * Reads the cursor into a snapshot and caches it, unless the cache was invalidated since
+     * {@code generation} was read. Small results are returned as a snapshot cursor and the given
+     * cursor is closed; large results are returned as is.
+     */
+    public Cursor put(String key, long generation, Cursor cursor) {
+        if (cursor == null) {
+            return null;
+        }
+
+        // Counting reads the whole result, which may be cancelled half way
+        int count;
+        try {
+            count = cursor.getCount();
+        } catch (RuntimeException e) {
+            cursor.close();
+            throw e;
+        }
+        if (count > MAX_CACHED_ROWS) {
+            return cursor;
+        }
+
+        Snapshot snapshot;
+        try {
+            snapshot = new Snapshot(cursor);
+        } finally {
+            cursor.close();
+        }
+
+        // A result bigger than a quarter of the cache would just flush everything else
+        long bytes = snapshot.mSizeBytes + key.length() * 2;
+        if (bytes <= mMaxBytes / 4) {
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    Snapshot previous = mEntries.put(key, snapshot);
+                    if (previous != null) {
+                        mSizeBytes -= previous.mSizeBytes + key.length() * 2;
+                    }
+                    mSizeBytes += bytes;
+                    trimToSize();
+                }
+            }
+        }
+
+        return new SnapshotCursor(snapshot);
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Snapshot>> iterator = mEntries.entrySet().iterator();
+        while (mSizeBytes > mMaxBytes && iterator.hasNext()) {
+            Map.Entry<String, Snapshot> eldest = iterator.next();
+            mSizeBytes -= eldest.getValue().mSizeBytes + eldest.getKey().length() * 2;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Immutable copy of a query result.
+     */
+    private static final class Snapshot {
+
+        private final String[] mColumnNames;
+        private final Object[][] mRows;
+        private final long mSizeBytes;
+
+        Snapshot(Cursor cursor) {
+            mColumnNames = cursor.getColumnNames();
+            mRows = new Object[cursor.getCount()][];
+
+            long size = OBJECT_OVERHEAD;
+            int columnCount = mColumnNames.length;
+            cursor.moveToPosition(-1);
+            for (int row = 0; cursor.moveToNext(); row++) {
+                Object[] values = new Object[columnCount];
+                size += OBJECT_OVERHEAD + columnCount * 4;
+                for (int i = 0; i < columnCount; i++) {
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            values[i] = cursor.getLong(i);
+                            size += OBJECT_OVERHEAD + 8;
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            values[i] = cursor.getDouble(i);
+                            size += OBJECT_OVERHEAD + 8;
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            byte[] blob = cursor.getBlob(i);
+                            values[i] = blob;
+                            size += OBJECT_OVERHEAD + blob.length;
+                            break;
+                        default:
+                            String string = cursor.getString(i);
+                            values[i] = string;
+                            size += 2 * OBJECT_OVERHEAD + 2 * string.length();
+                    }
+                }
+                mRows[row] = values;
+            }
+            mSizeBytes = size;
+        }
+    }
+
+    /**
+     * Read only cursor over a {@link Snapshot}. Many of these can share one snapshot.
+     */
+    private static final class SnapshotCursor extends AbstractCursor {
+
+        private final Snapshot mSnapshot;
+
+        SnapshotCursor(Snapshot snapshot) {
+            mSnapshot = snapshot;
+        }
+
+        private Object get(int column) {
+            if (column < 0 || column >= mSnapshot.mColumnNames.length) {
+                throw new IllegalArgumentException("Invalid column " + column);
+            }
+            int position = getPosition();
+            if (position < 0 || position >= mSnapshot.mRows.length) {
+                throw new IllegalStateException("Cursor is not on a row");
+            }
+            return mSnapshot.mRows[position][column];
+        }
+
+        @Override
+        public int getCount() {
+            return mSnapshot.mRows.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mSnapshot.mColumnNames;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = get(column);
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return 0;
+            }
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return Long.parseLong(value.toString());
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return 0;
+            }
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return Double.parseDouble(value.toString());
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = get(column);
+            if (value == null || value instanceof byte[]) {
+                return (byte[]) value;
+            }
+            throw new IllegalStateException("Column " + column + " is not a blob");
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return Cursor.FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return Cursor.FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return Cursor.FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return Cursor.FIELD_TYPE_BLOB;
+            }
+            return Cursor.FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Opt-in tracing of the query plans behind {@link PetProvider}. Selections and sort orders come
+ * from callers, so the provider cannot know up front which of them miss an index.
+ *
+ * While tracing is on, every statement on the pets tables is reduced to its shape (the SQL with
+ * "?" placeholders, without the argument values) and EXPLAIN QUERY PLAN runs once per shape. The
+ * plan is cached, and every further execution only bumps counters for the shape, the URI and the
+ * call site. Shapes whose plan scans a whole table or sorts in a temporary B-tree are flagged
+ * and logged the first time they are seen; {@link #buildReport(boolean)} lists them by
+ * execution count.
+ */
+public class PetQueryPlanTracer {
+
+    public static final String LOG_TAG = PetQueryPlanTracer.class.getSimpleName();
+
+    /** Distinct shapes kept at most; callers that inline values could otherwise flood the map. */
+    private static final int MAX_SHAPES = 200;
+
+    /** Distinct URIs and call sites kept per shape. */
+    private static final int MAX_ORIGINS = 10;
+
+    private volatile boolean mEnabled;
+
+    /** Guarded by this. */
+    private final Map<String, Shape> mShapes = new LinkedHashMap<>();
+    private long mDroppedExecutions;
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Turns tracing on or off. Turning it on starts with a clean slate.
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        // Check, clear and switch in one step, so a concurrent call cannot clear the shapes
+        // of a run that already started or leave tracing on with the shapes of an old one
+        if (enabled && !mEnabled) {
+            mShapes.clear();
+            mDroppedExecutions = 0;
+        }
+        mEnabled = enabled;
+    }
+
+    /**
+     * Records one execution of a statement. Call right before running it, and only while
+     * {@link #isEnabled()}.
+     *
+     * @param operation "query", "update" or "delete"
+     * @param sql       the statement, or for updates and deletes a SELECT with the same WHERE
+     */
+    public void trace(SQLiteDatabase database, String operation, Uri uri, String sql,
+                      String[] selectionArgs) {
+        String key = operation + " " + sql.trim().replaceAll("\\s+", " ");
+        String origin = describeUri(uri);
+        String callSite = findCallSite();
+
+        Shape shape;
+        synchronized (this) {
+            shape = mShapes.get(key);
+            if (shape != null) {
+                shape.record(origin, callSite);
+                return;
+            }
+            if (mShapes.size() >= MAX_SHAPES) {
+                mDroppedExecutions++;
+                return;
+            }
+        }
+
+        // Explain outside of the lock; at worst two threads explain the same new shape
+        List<String> plan = explain(database, sql, selectionArgs);
+        if (plan == null) {
+            return;
+        }
+        synchronized (this) {
+            shape = mShapes.get(key);
+            if (shape == null) {
+                shape = new Shape(key, plan);
+                mShapes.put(key, shape);
+                if (shape.isFlagged()) {
+                    Log.w(LOG_TAG, "Unindexed " + key + " from " + callSite + ": " + plan);
+                }
+            }
+            shape.record(origin, callSite);
+        }
+    }
+
+    private static List<String> explain(SQLiteDatabase database, String sql, String[] args) {
+        List<String> plan = new ArrayList<>();
+        Cursor cursor;
+        try {
+            cursor = database.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        } catch (SQLiteException e) {
+            // The statement itself is about to fail and tell the caller why
+            return null;
+        }
+        try {
+            // The columns changed between SQLite versions, but "detail" is always there
+            int detailColumnIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detailColumnIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan;
+    }
+
+    /**
+     * Reduces a URI to its path and the names of its query parameters, so a filter typed
+     * letter by letter counts as one origin.
+     */
+    private static String describeUri(Uri uri) {
+        TreeSet<String> names = new TreeSet<>(uri.getQueryParameterNames());
+        return names.isEmpty() ? uri.getPath() : uri.getPath() + "?" + names;
+    }
+
+    /**
+     * Returns the first frame of the stack outside of the provider, the tracer and the
+     * framework code that hands a resolver call to the provider. Other classes of the data
+     * package, such as importers and the data generator, are call sites in their own right.
+     */
+    private static String findCallSite() {
+        for (StackTraceElement frame : Thread.currentThread().getStackTrace()) {
+            if (!isInternalFrame(frame.getClassName())) {
+                return frame.toString();
+            }
+        }
+        return "unknown";
+    }
+
+    private static boolean isInternalFrame(String className) {
+        return isClassOrInnerClass(className, PetProvider.class)
+                || isClassOrInnerClass(className, PetQueryPlanTracer.class)
+                || className.startsWith("android.")
+                || className.startsWith("com.android.")
+                || className.startsWith("dalvik.")
+                || className.startsWith("libcore.")
+                || className.startsWith("java.lang.Thread")
+                || className.startsWith("java.lang.reflect.")
+                || className.startsWith("sun.reflect.")
+                || className.startsWith("jdk.internal.reflect.")
+                // Robolectric's shadows stand in for the framework in the unit tests
+                || className.startsWith("org.robolectric.");
+    }
+
+    private static boolean isClassOrInnerClass(String className, Class<?> outer) {
+        return className.equals(outer.getName()) || className.startsWith(outer.getName() + "$");
+    }
+
+    /**
+     * Lists the traced shapes, most executed first, with their plan, URIs and call sites.
+     *
+     * @param flaggedOnly only list shapes with a full scan or a temporary B-tree
+     */
+    public synchronized String buildReport(boolean flaggedOnly) {
+        List<Shape> shapes = new ArrayList<>(mShapes.values());
+        Collections.sort(shapes, new Comparator<Shape>() {
+            @Override
+            public int compare(Shape a, Shape b) {
+                return a.mExecutions < b.mExecutions ? 1 : a.mExecutions > b.mExecutions ? -1 : 0;
+            }
+        });
+
+        int flagged = 0;
+        for (Shape shape : shapes) {
+            if (shape.isFlagged()) {
+                flagged++;
+            }
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append(shapes.size()).append(" statement shapes, ").append(flagged)
+                .append(" with a full scan or temp b-tree");
+        if (mDroppedExecutions > 0) {
+            report.append(", ").append(mDroppedExecutions)
+                    .append(" executions of further shapes not traced");
+        }
+        report.append('\n');
+
+        for (Shape shape : shapes) {
+            if (flaggedOnly && !shape.isFlagged()) {
+                continue;
+            }
+            report.append('\n');
+            if (shape.mScan) {
+                report.append("[SCAN] ");
+            }
+            if (shape.mTempBTree) {
+                report.append("[TEMP B-TREE] ");
+            }
+            report.append(shape.mExecutions).append("x ").append(shape.mKey).append('\n');
+            for (String step : shape.mPlan) {
+                report.append("  plan: ").append(step).append('\n');
+            }
+            appendCounts(report, "  uri: ", shape.mUris);
+            appendCounts(report, "  at ", shape.mCallSites);
+        }
+        return report.toString();
+    }
+
+    private static void appendCounts(StringBuilder report, String prefix, Map<String, Long> counts) {
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            report.append(prefix).append(entry.getKey())
+                    .append(" (").append(entry.getValue()).append("x)\n");
+        }
+    }
+
+    /**
+     * One statement shape with its plan and where it came from.
+     */
+    private static final class Shape {
+
+        private final String mKey;
+        private final List<String> mPlan;
+        private final boolean mScan;
+        private final boolean mTempBTree;
+
+        private long mExecutions;
+        private final Map<String, Long> mUris = new LinkedHashMap<>();
+        private final Map<String, Long> mCallSites = new LinkedHashMap<>();
+
+        Shape(String key, List<String> plan) {
+            mKey = key;
+            mPlan = plan;
+            boolean scan = false;
+            boolean tempBTree = false;
+            for (String step : plan) {
+                // "SCAN TABLE pets" in older SQLite versions, "SCAN pets" in newer ones
+                if (step.startsWith("SCAN")) {
+                    scan = true;
+                }
+                if (step.startsWith("USE TEMP B-TREE")) {
+                    tempBTree = true;
+                }
+            }
+            mScan = scan;
+            mTempBTree = tempBTree;
+        }
+
+        boolean isFlagged() {
+            return mScan || mTempBTree;
+        }
+
+        void record(String uri, String callSite) {
+            mExecutions++;
+            increment(mUris, uri);
+            increment(mCallSites, callSite);
+        }
+
+        private static void increment(Map<String, Long> counts, String key) {
+            Long count = counts.get(key);
+            if (count != null) {
+                counts.put(key, count + 1);
+            } else if (counts.size() < MAX_ORIGINS) {
+                counts.put(key, 1L);
+            }
+        }
+    }
+}
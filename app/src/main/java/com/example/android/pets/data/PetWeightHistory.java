@@ -0,0 +1,202 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetWeightEntry;
+
+/**
+ * Append-only weight history of the pets, with daily and weekly rollups for charts.
+ *
+ * Every reading is a row of {@link PetWeightEntry#TABLE_NAME}. A trigger created in
+ * {@link PetDbHelper} folds each new reading into the rollup tables, which hold count, sum,
+ * minimum and maximum per pet and day or week, so a chart over a year reads 53 weekly rows
+ * instead of every reading. Readings are never updated; they only go away with their pet.
+ */
+public final class PetWeightHistory {
+
+    static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    static final long WEEK_MILLIS = 7 * DAY_MILLIS;
+
+    /** The epoch was a Thursday, so weeks start three days before it. */
+    private static final long WEEK_OFFSET_MILLIS = 3 * DAY_MILLIS;
+
+    private PetWeightHistory() {}
+
+    /**
+     * SQL expression for the start of the UTC day of a timestamp. Must match
+     * {@link #dayStart(long)}.
+     */
+    static String dayStartSql(String timestamp) {
+        return "(" + timestamp + " - " + timestamp + " % " + DAY_MILLIS + ")";
+    }
+
+    /**
+     * SQL expression for the start of the week (Monday, UTC) of a timestamp. Must match
+     * {@link #weekStart(long)}.
+     */
+    static String weekStartSql(String timestamp) {
+        return "(" + timestamp + " - (" + timestamp + " + " + WEEK_OFFSET_MILLIS + ") % "
+                + WEEK_MILLIS + ")";
+    }
+
+    static long dayStart(long timestamp) {
+        return timestamp - timestamp % DAY_MILLIS;
+    }
+
+    static long weekStart(long timestamp) {
+        return timestamp - (timestamp + WEEK_OFFSET_MILLIS) % WEEK_MILLIS;
+    }
+
+    /**
+     * Compiles the statement that appends a reading. A second reading for the same pet and
+     * millisecond is ignored, which leaves the rollups untouched.
+     */
+    static SQLiteStatement compileAppend(SQLiteDatabase database) {
+        return database.compileStatement("INSERT OR IGNORE INTO " + PetWeightEntry.TABLE_NAME
+                + " (" + PetWeightEntry.COLUMN_PET_ID + ", " + PetWeightEntry.COLUMN_TIMESTAMP
+                + ", " + PetWeightEntry.COLUMN_WEIGHT + ") VALUES (?, ?, ?)");
+    }
+
+    /**
+     * Appends a single reading. Call inside the transaction that changed the weight of the pet.
+     */
+    static void appendReading(SQLiteDatabase database, long petId, long timestamp, int weight) {
+        SQLiteStatement append = compileAppend(database);
+        try {
+            append(append, petId, timestamp, weight);
+        } finally {
+            append.close();
+        }
+    }
+
+    /**
+     * Appends the readings of one pet, each holding {@link PetWeightEntry#COLUMN_TIMESTAMP} and
+     * {@link PetWeightEntry#COLUMN_WEIGHT}, which the caller has validated. Call inside a
+     * transaction.
+     *
+     * @return the number of readings that were new
+     */
+    static int appendReadings(SQLiteDatabase database, long petId, ContentValues[] readings) {
+        int appended = 0;
+        SQLiteStatement append = compileAppend(database);
+        try {
+            for (ContentValues reading : readings) {
+                if (append(append, petId, reading.getAsLong(PetWeightEntry.COLUMN_TIMESTAMP),
+                        reading.getAsInteger(PetWeightEntry.COLUMN_WEIGHT))) {
+                    appended++;
+                }
+            }
+        } finally {
+            append.close();
+        }
+        return appended;
+    }
+
+    /**
+     * Starts the history of every pet that has a weight but no readings yet with its current
+     * weight, e.g. after a bulk load that left the history out. Call inside a transaction.
+     */
+    static void startMissingHistories(SQLiteDatabase database, long timestamp) {
+        database.execSQL("INSERT INTO " + PetWeightEntry.TABLE_NAME + " ("
+                + PetWeightEntry.COLUMN_PET_ID + ", " + PetWeightEntry.COLUMN_TIMESTAMP + ", "
+                + PetWeightEntry.COLUMN_WEIGHT + ") SELECT " + PetEntry._ID + ", ?, "
+                + PetEntry.COLUMN_PET_WEIGHT + " FROM " + PetEntry.TABLE_NAME + " p"
+                + " WHERE " + PetEntry.COLUMN_PET_WEIGHT + " > 0 AND NOT EXISTS (SELECT 1 FROM "
+                + PetWeightEntry.TABLE_NAME + " h WHERE h." + PetWeightEntry.COLUMN_PET_ID
+                + " = p." + PetEntry._ID + ");", new Object[]{timestamp});
+    }
+
+    /**
+     * Runs a statement from {@link #compileAppend(SQLiteDatabase)}.
+     *
+     * @return false if there already was a reading at that time
+     */
+    static boolean append(SQLiteStatement append, long petId, long timestamp, int weight) {
+        append.bindLong(1, petId);
+        append.bindLong(2, timestamp);
+        append.bindLong(3, weight);
+        return append.executeInsert() != -1;
+    }
+
+    /**
+     * Sets the current weight of the pet to its latest reading.
+     *
+     * @return true if the weight changed
+     */
+    static boolean syncCurrentWeight(SQLiteDatabase database, long petId) {
+        String latest = "(SELECT " + PetWeightEntry.COLUMN_WEIGHT + " FROM "
+                + PetWeightEntry.TABLE_NAME + " WHERE " + PetWeightEntry.COLUMN_PET_ID + " = ?"
+                + " ORDER BY " + PetWeightEntry.COLUMN_TIMESTAMP + " DESC LIMIT 1)";
+        SQLiteStatement update = database.compileStatement("UPDATE " + PetEntry.TABLE_NAME
+                + " SET " + PetEntry.COLUMN_PET_WEIGHT + " = " + latest
+                + " WHERE " + PetEntry._ID + " = ? AND " + PetEntry.COLUMN_PET_WEIGHT
+                + " != " + latest);
+        try {
+            update.bindLong(1, petId);
+            update.bindLong(2, petId);
+            update.bindLong(3, petId);
+            return update.executeUpdateDelete() > 0;
+        } finally {
+            update.close();
+        }
+    }
+
+    /**
+     * Returns the series of one pet between {@code from} (inclusive) and {@code to}
+     * (exclusive), oldest first. Rollup series include the day or week that contains
+     * {@code from}.
+     *
+     * @param schema     "main", or the archive schema for an archived pet
+     * @param resolution one of the {@link PetWeightEntry} resolutions
+     */
+    static Cursor querySeries(SQLiteDatabase database, String schema, long petId,
+                              String resolution, long from, long to) {
+        String[] args;
+        String sql;
+        if (PetWeightEntry.RESOLUTION_RAW.equals(resolution)) {
+            // Both bounds are answered from the (pet_id, timestamp) key
+            sql = "SELECT " + PetWeightEntry._ID + ", "
+                    + PetWeightEntry.COLUMN_TIMESTAMP + ", "
+                    + "1 AS " + PetWeightEntry.COLUMN_READING_COUNT + ", "
+                    + PetWeightEntry.COLUMN_WEIGHT + " AS " + PetWeightEntry.COLUMN_MIN_WEIGHT + ", "
+                    + PetWeightEntry.COLUMN_WEIGHT + " AS " + PetWeightEntry.COLUMN_MAX_WEIGHT + ", "
+                    + PetWeightEntry.COLUMN_WEIGHT + " AS " + PetWeightEntry.COLUMN_AVG_WEIGHT
+                    + " FROM " + schema + "." + PetWeightEntry.TABLE_NAME
+                    + " WHERE " + PetWeightEntry.COLUMN_PET_ID + " = ? AND "
+                    + PetWeightEntry.COLUMN_TIMESTAMP + " >= ? AND "
+                    + PetWeightEntry.COLUMN_TIMESTAMP + " < ?"
+                    + " ORDER BY " + PetWeightEntry.COLUMN_TIMESTAMP;
+            args = new String[]{String.valueOf(petId), String.valueOf(from), String.valueOf(to)};
+        } else {
+            String table;
+            long start;
+            if (PetWeightEntry.RESOLUTION_DAY.equals(resolution)) {
+                table = PetWeightEntry.DAILY_TABLE_NAME;
+                start = dayStart(from);
+            } else if (PetWeightEntry.RESOLUTION_WEEK.equals(resolution)) {
+                table = PetWeightEntry.WEEKLY_TABLE_NAME;
+                start = weekStart(from);
+            } else {
+                throw new IllegalArgumentException("Unknown resolution " + resolution);
+            }
+            sql = "SELECT " + PetWeightEntry.COLUMN_BUCKET + " AS " + PetWeightEntry._ID + ", "
+                    + PetWeightEntry.COLUMN_BUCKET + " AS " + PetWeightEntry.COLUMN_TIMESTAMP + ", "
+                    + PetWeightEntry.COLUMN_READING_COUNT + ", "
+                    + PetWeightEntry.COLUMN_MIN_WEIGHT + ", "
+                    + PetWeightEntry.COLUMN_MAX_WEIGHT + ", "
+                    + "CAST(" + PetWeightEntry.COLUMN_WEIGHT_SUM + " AS REAL) / "
+                    + PetWeightEntry.COLUMN_READING_COUNT + " AS " + PetWeightEntry.COLUMN_AVG_WEIGHT
+                    + " FROM " + schema + "." + table
+                    + " WHERE " + PetWeightEntry.COLUMN_PET_ID + " = ? AND "
+                    + PetWeightEntry.COLUMN_BUCKET + " >= ? AND "
+                    + PetWeightEntry.COLUMN_BUCKET + " < ?"
+                    + " ORDER BY " + PetWeightEntry.COLUMN_BUCKET;
+            args = new String[]{String.valueOf(petId), String.valueOf(start), String.valueOf(to)};
+        }
+        return database.rawQuery(sql, args);
+    }
+}
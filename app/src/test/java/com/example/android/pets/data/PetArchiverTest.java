@@ -0,0 +1,117 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetArchiveEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that pets brought back by restoring a backup taken before they were archived can be
+ * archived again, with the restored copy replacing the archived one.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class PetArchiverTest {
+
+    /** Archives every pet that is no longer available, however recently it left. */
+    private static final String ALL_DAYS = "-1";
+
+    private ContentResolver mContentResolver;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(PetProvider.class);
+        mContentResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void archivingRestoredPetsAgainReplacesArchivedCopies() {
+        insertPet("Rex");
+        long bellaId = insertPet("Bella");
+        long maxId = insertPet("Max");
+        markAdopted(bellaId);
+        markAdopted(maxId);
+
+        File backup = new File(RuntimeEnvironment.application.getCacheDir(), "before-archive.db");
+        call(PetContract.METHOD_BACKUP, backup.getPath());
+
+        assertEquals(2, archive());
+        assertEquals(1, count(PetEntry.CONTENT_URI));
+
+        // Bella and Max are back in the pets table, and still in the archive
+        call(PetContract.METHOD_RESTORE, backup.getPath());
+        assertEquals(3, count(PetEntry.CONTENT_URI));
+
+        ContentValues rename = new ContentValues();
+        rename.put(PetEntry.COLUMN_PET_NAME, "Bella Two");
+        assertEquals(1, mContentResolver.update(
+                ContentUris.withAppendedId(PetEntry.CONTENT_URI, bellaId), rename, null, null));
+
+        assertEquals(2, archive());
+        assertEquals(1, count(PetEntry.CONTENT_URI));
+        assertEquals(2, count(PetArchiveEntry.CONTENT_URI));
+
+        Cursor cursor = mContentResolver.query(
+                ContentUris.withAppendedId(PetArchiveEntry.CONTENT_URI, bellaId),
+                null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Bella Two",
+                    cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long insertPet(String name) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        values.put(PetEntry.COLUMN_PET_BREED, "Terrier");
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 7);
+        return ContentUris.parseId(mContentResolver.insert(PetEntry.CONTENT_URI, values));
+    }
+
+    private void markAdopted(long id) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_STATUS, PetEntry.STATUS_ADOPTED);
+        assertEquals(1, mContentResolver.update(
+                ContentUris.withAppendedId(PetEntry.CONTENT_URI, id), values, null, null));
+    }
+
+    private int archive() {
+        return call(PetContract.METHOD_ARCHIVE, ALL_DAYS).getInt(PetContract.EXTRA_COUNT);
+    }
+
+    private Bundle call(String method, String arg) {
+        return mContentResolver.call(PetContract.BASE_CONTENT_URI, method, arg, null);
+    }
+
+    private int count(Uri uri) {
+        Cursor cursor = mContentResolver.query(uri, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
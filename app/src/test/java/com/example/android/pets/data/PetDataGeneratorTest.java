@@ -0,0 +1,92 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetDuplicateEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetWeightEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link PetDataGenerator} is reproducible and that a bulk load ends up with the
+ * same derived tables as pet by pet inserts. How fast a load is gets measured on a device, see
+ * the generate option of the catalog's debug menu, not here.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class PetDataGeneratorTest {
+
+    private static final long SEED = 42;
+
+    /** More than one batch of the index rebuild that finishes a bulk load. */
+    private static final int LOAD_COUNT = 2500;
+
+    private ContentResolver mContentResolver;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(PetProvider.class);
+        mContentResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void sameSeedYieldsSamePets() {
+        PetDataGenerator first = new PetDataGenerator(SEED);
+        PetDataGenerator second = new PetDataGenerator(SEED);
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(first.next(), second.next());
+        }
+    }
+
+    @Test
+    public void bulkLoadBuildsIndexAndHistoryAtTheEnd() {
+        int inserted = new PetDataGenerator(SEED).load(mContentResolver, LOAD_COUNT, true);
+
+        assertEquals(LOAD_COUNT, inserted);
+        assertEquals(LOAD_COUNT, count(PetEntry.CONTENT_URI));
+        assertDerivedTablesComplete();
+    }
+
+    @Test
+    public void regularLoadKeepsIndexAndHistoryUpToDate() {
+        int inserted = new PetDataGenerator(SEED).load(mContentResolver, LOAD_COUNT, false);
+
+        assertEquals(LOAD_COUNT, inserted);
+        assertDerivedTablesComplete();
+    }
+
+    /**
+     * The first generated pet has a reading and is found as a duplicate of itself.
+     */
+    private void assertDerivedTablesComplete() {
+        Pet pet = new PetDataGenerator(SEED).next();
+        assertEquals(1, count(PetWeightEntry.buildWeightsUri(1)));
+
+        Uri duplicates = PetDuplicateEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(PetEntry.COLUMN_PET_NAME, pet.name)
+                .build();
+        assertTrue(count(duplicates) > 0);
+    }
+
+    private int count(Uri uri) {
+        Cursor cursor = mContentResolver.query(uri, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
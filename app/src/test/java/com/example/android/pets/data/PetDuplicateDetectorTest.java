@@ -0,0 +1,116 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetDuplicateEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link PetDuplicateDetector} finds an exact duplicate of a pet with a name that
+ * thousands of other pets share, both in a single lookup and in a batch.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class PetDuplicateDetectorTest {
+
+    private static final String NAME = "Bella";
+
+    /** Far more pets with the name than a lookup short-lists. */
+    private static final int SAME_NAME_PETS = 2000;
+
+    private static final String[] OTHER_BREEDS = {"Poodle", "Labrador", "Terrier", "Boxer"};
+
+    private ContentResolver mContentResolver;
+    private long mDuplicateId;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(PetProvider.class);
+        mContentResolver = RuntimeEnvironment.application.getContentResolver();
+
+        // Same name pets on both sides of the duplicate, so its id decides no tie
+        Random random = new Random(7);
+        insertSameNamePets(random);
+        mDuplicateId = ContentUris.parseId(mContentResolver.insert(PetEntry.CONTENT_URI,
+                pet(NAME, "Beagle", PetEntry.GENDER_FEMALE, 12)));
+        insertSameNamePets(random);
+    }
+
+    @Test
+    public void singleLookupFindsExactDuplicateOfCommonName() {
+        Cursor cursor = mContentResolver.query(PetDuplicateEntry.buildQueryUri(NAME, "Beagle",
+                PetEntry.GENDER_FEMALE, 12), null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(mDuplicateId,
+                    cursor.getLong(cursor.getColumnIndexOrThrow(PetDuplicateEntry._ID)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void batchLookupFindsExactDuplicateOfCommonName() {
+        ArrayList<ContentValues> batch = new ArrayList<>();
+        batch.add(pet(NAME, "Poodle", PetEntry.GENDER_MALE, 30));
+        batch.add(pet(NAME, "Beagle", PetEntry.GENDER_FEMALE, 12));
+        Bundle extras = new Bundle();
+        extras.putParcelableArrayList(PetContract.EXTRA_PETS, batch);
+
+        Bundle result = mContentResolver.call(PetEntry.CONTENT_URI,
+                PetContract.METHOD_FIND_DUPLICATES, null, extras);
+        int[] entries = result.getIntArray(PetContract.EXTRA_ENTRY);
+        long[] petIds = result.getLongArray(PetContract.EXTRA_PET_ID);
+
+        int firstOfSecondEntry = -1;
+        int[] perEntry = new int[batch.size()];
+        for (int i = 0; i < entries.length; i++) {
+            perEntry[entries[i]]++;
+            if (entries[i] == 1 && firstOfSecondEntry == -1) {
+                firstOfSecondEntry = i;
+            }
+        }
+        assertTrue(firstOfSecondEntry != -1);
+        assertEquals(mDuplicateId, petIds[firstOfSecondEntry]);
+        // The short list of each entry is capped, however many pets share the name
+        assertTrue(perEntry[0] <= 50);
+        assertTrue(perEntry[1] <= 50);
+    }
+
+    private void insertSameNamePets(Random random) {
+        ContentValues[] pets = new ContentValues[SAME_NAME_PETS];
+        for (int i = 0; i < pets.length; i++) {
+            pets[i] = pet(NAME, OTHER_BREEDS[random.nextInt(OTHER_BREEDS.length)],
+                    random.nextInt(3), 1 + random.nextInt(40));
+        }
+        assertEquals(pets.length, mContentResolver.bulkInsert(PetEntry.CONTENT_URI, pets));
+    }
+
+    private static ContentValues pet(String name, String breed, int gender, int weight) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        values.put(PetEntry.COLUMN_PET_BREED, breed);
+        values.put(PetEntry.COLUMN_PET_GENDER, gender);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        return values;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.android.pets.data;
+
+import com.example.android.pets.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link PetStressHarness} as part of the unit tests. Robolectric gives every test its own
+ * application data directory, so the provider works on a fresh shelter.db and the device's
+ * database is never touched.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class PetProviderStressTest {
+
+    @Before
+    public void setUp() {
+        ShadowLog.stream = System.out;
+        Robolectric.setupContentProvider(PetProvider.class);
+    }
+
+    @Test
+    public void mixedLoadKeepsRowCountAndRaisesNoLockErrors() throws InterruptedException {
+        PetStressHarness.Report report = new PetStressHarness(
+                RuntimeEnvironment.application.getContentResolver(), 4, 2, 2, 1, 100).run();
+
+        assertEquals(report.toString(), 0, report.lockErrors);
+        assertEquals(report.toString(), 0, report.otherErrors);
+        assertTrue(report.toString(), report.rowCountMatches());
+        assertEquals(9 * 100, report.operations);
+    }
+
+    @Test
+    public void writersOnlyKeepRowCount() throws InterruptedException {
+        PetStressHarness.Report report = new PetStressHarness(
+                RuntimeEnvironment.application.getContentResolver(), 0, 4, 4, 0, 100).run();
+
+        assertEquals(report.toString(), 0, report.lockErrors + report.otherErrors);
+        assertTrue(report.toString(), report.rowCountMatches());
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.android.pets.data;
+
+import android.net.Uri;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Checks that {@link PetQueryCache#buildKey} only gives queries the same key if they return the
+ * same rows.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class PetQueryCacheTest {
+
+    private static final Uri URI = PetEntry.CONTENT_URI;
+
+    @Test
+    public void formattingOutsideOfQuotesSharesKey() {
+        assertEquals(key("name = ?  AND\n weight > 3", null),
+                key(" name = ? AND weight > 3 ", null));
+    }
+
+    @Test
+    public void whitespaceInsideQuotesKeepsKeysApart() {
+        assertNotEquals(key("name = 'Mr  Whiskers'", null),
+                key("name = 'Mr Whiskers'", null));
+        // An escaped quote does not end the literal
+        assertNotEquals(key("name = 'O''Malley  Jr'", null),
+                key("name = 'O''Malley Jr'", null));
+        assertNotEquals(key("\"pet  name\" = ?", null), key("\"pet name\" = ?", null));
+    }
+
+    @Test
+    public void separatorsInArgumentsKeepKeysApart() {
+        assertNotEquals(key("name IN (?, ?)", new String[]{"a, b", "c"}),
+                key("name IN (?, ?)", new String[]{"a", "b, c"}));
+    }
+
+    @Test
+    public void nullArgumentDiffersFromTextNull() {
+        assertNotEquals(key("name = ?", new String[]{null}),
+                key("name = ?", new String[]{"null"}));
+        assertNotEquals(key("name = ?", null), key("name = ?", new String[0]));
+    }
+
+    private static String key(String selection, String[] selectionArgs) {
+        return PetQueryCache.buildKey(URI, null, selection, selectionArgs, null);
+    }
+}
@@ -0,0 +1,350 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a mix of reader and writer threads against {@link PetProvider} at the same time, the way
+ * the catalog, single edits, imports and sync do in production. Reports throughput, latency
+ * percentiles and lock errors, and checks that the number of rows in the pets table is what the
+ * writers expect.
+ *
+ * Every thread goes through the content resolver, so the query cache, the change log, the
+ * trigram index and the weight history are kept up exactly as they are in the app, and readers
+ * only see cached results for as long as nothing was written.
+ */
+public class PetStressHarness {
+
+    public static final String LOG_TAG = PetStressHarness.class.getSimpleName();
+
+    /** Pets per bulk insert of an import thread. */
+    private static final int IMPORT_BATCH_SIZE = 20;
+
+    private static final String[] READ_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED
+    };
+
+    private final ContentResolver mContentResolver;
+    private final int mReaderThreads;
+    private final int mWriterThreads;
+    private final int mImportThreads;
+    private final int mSyncThreads;
+    private final int mOperationsPerThread;
+
+    private final AtomicLong mExpectedRowDelta = new AtomicLong();
+    private final AtomicInteger mLockErrors = new AtomicInteger();
+    private final AtomicInteger mOtherErrors = new AtomicInteger();
+
+    /**
+     * @param readerThreads       threads querying the catalog
+     * @param writerThreads       threads inserting, updating and deleting single pets
+     * @param importThreads       threads inserting pets in bulk
+     * @param syncThreads         threads following the change log
+     * @param operationsPerThread operations every thread runs before it stops
+     */
+    public PetStressHarness(ContentResolver contentResolver, int readerThreads,
+                            int writerThreads, int importThreads, int syncThreads,
+                            int operationsPerThread) {
+        mContentResolver = contentResolver;
+        mReaderThreads = readerThreads;
+        mWriterThreads = writerThreads;
+        mImportThreads = importThreads;
+        mSyncThreads = syncThreads;
+        mOperationsPerThread = operationsPerThread;
+    }
+
+    /**
+     * Runs all threads to completion and returns the report. Also logs it.
+     */
+    public Report run() throws InterruptedException {
+        long initialRows = countRows();
+        mExpectedRowDelta.set(0);
+        mLockErrors.set(0);
+        mOtherErrors.set(0);
+
+        int threadCount = mReaderThreads + mWriterThreads + mImportThreads + mSyncThreads;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final long[][] latencies = new long[threadCount][];
+        List<Thread> threads = new ArrayList<>(threadCount);
+
+        for (int i = 0; i < threadCount; i++) {
+            final int index = i;
+            final int kind = i < mReaderThreads ? 0
+                    : i < mReaderThreads + mWriterThreads ? 1
+                    : i < mReaderThreads + mWriterThreads + mImportThreads ? 2 : 3;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        Random random = new Random(index);
+                        if (kind == 0) {
+                            latencies[index] = runReader();
+                        } else if (kind == 1) {
+                            latencies[index] = runWriter(random, index);
+                        } else if (kind == 2) {
+                            latencies[index] = runImporter(random, index);
+                        } else {
+                            latencies[index] = runSync();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, LOG_TAG + "-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+
+        long startNanos = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        long finalRows = countRows();
+        long expectedRows = initialRows + mExpectedRowDelta.get();
+
+        Report report = new Report(merge(latencies), elapsedNanos, mLockErrors.get(),
+                mOtherErrors.get(), expectedRows, finalRows);
+        Log.i(LOG_TAG, report.toString());
+        return report;
+    }
+
+    private long[] runReader() {
+        long[] latencies = new long[mOperationsPerThread];
+        for (int i = 0; i < mOperationsPerThread; i++) {
+            long start = System.nanoTime();
+            try {
+                Cursor cursor = mContentResolver.query(PetEntry.CONTENT_URI, READ_PROJECTION,
+                        null, null, null);
+                if (cursor != null) {
+                    // Walk the result like the list would
+                    while (cursor.moveToNext()) {
+                        cursor.getString(1);
+                    }
+                    cursor.close();
+                }
+            } catch (RuntimeException e) {
+                recordError(e);
+            }
+            latencies[i] = System.nanoTime() - start;
+        }
+        return latencies;
+    }
+
+    /**
+     * Inserts, updates and deletes in a 2:1:1 ratio. Only touches rows this thread inserted.
+     */
+    private long[] runWriter(Random random, int thread) {
+        long[] latencies = new long[mOperationsPerThread];
+        List<Uri> inserted = new ArrayList<>();
+        for (int i = 0; i < mOperationsPerThread; i++) {
+            int operation = random.nextInt(4);
+            long start = System.nanoTime();
+            try {
+                if (operation < 2 || inserted.isEmpty()) {
+                    Uri uri = mContentResolver.insert(PetEntry.CONTENT_URI,
+                            buildPet(random, thread, i));
+                    if (uri == null) {
+                        // The provider swallows the SQLiteException and logs it
+                        mOtherErrors.incrementAndGet();
+                    } else {
+                        inserted.add(uri);
+                        mExpectedRowDelta.incrementAndGet();
+                    }
+                } else if (operation == 2) {
+                    Uri uri = inserted.get(random.nextInt(inserted.size()));
+                    ContentValues values = new ContentValues();
+                    values.put(PetEntry.COLUMN_PET_WEIGHT, 1 + random.nextInt(120));
+                    mContentResolver.update(uri, values, null, null);
+                } else {
+                    Uri uri = inserted.remove(random.nextInt(inserted.size()));
+                    mExpectedRowDelta.addAndGet(-mContentResolver.delete(uri, null, null));
+                }
+            } catch (RuntimeException e) {
+                recordError(e);
+            }
+            latencies[i] = System.nanoTime() - start;
+        }
+        return latencies;
+    }
+
+    /**
+     * Inserts batches of {@link #IMPORT_BATCH_SIZE} pets, each of which is one transaction.
+     */
+    private long[] runImporter(Random random, int thread) {
+        long[] latencies = new long[mOperationsPerThread];
+        for (int i = 0; i < mOperationsPerThread; i++) {
+            ContentValues[] batch = new ContentValues[IMPORT_BATCH_SIZE];
+            for (int j = 0; j < batch.length; j++) {
+                batch[j] = buildPet(random, thread, i * IMPORT_BATCH_SIZE + j);
+            }
+            long start = System.nanoTime();
+            try {
+                mExpectedRowDelta.addAndGet(mContentResolver.bulkInsert(PetEntry.CONTENT_URI,
+                        batch));
+            } catch (RuntimeException e) {
+                recordError(e);
+            }
+            latencies[i] = System.nanoTime() - start;
+        }
+        return latencies;
+    }
+
+    /**
+     * Follows the change log like a sync client, always asking for what changed since the last
+     * change it saw.
+     */
+    private long[] runSync() {
+        long[] latencies = new long[mOperationsPerThread];
+        long since = 0;
+        for (int i = 0; i < mOperationsPerThread; i++) {
+            long start = System.nanoTime();
+            try {
+                Cursor cursor = mContentResolver.query(PetChangeEntry.buildChangesSinceUri(since),
+                        null, null, null, null);
+                if (cursor != null) {
+                    int idColumnIndex = cursor.getColumnIndexOrThrow(PetChangeEntry._ID);
+                    while (cursor.moveToNext()) {
+                        since = Math.max(since, cursor.getLong(idColumnIndex));
+                    }
+                    cursor.close();
+                }
+            } catch (RuntimeException e) {
+                recordError(e);
+            }
+            latencies[i] = System.nanoTime() - start;
+        }
+        return latencies;
+    }
+
+    private static ContentValues buildPet(Random random, int thread, int operation) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Stress " + thread + "-" + operation);
+        values.put(PetEntry.COLUMN_PET_BREED, "Stress Terrier");
+        values.put(PetEntry.COLUMN_PET_GENDER, random.nextInt(3));
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 1 + random.nextInt(120));
+        return values;
+    }
+
+    private void recordError(RuntimeException e) {
+        if (isLockError(e)) {
+            mLockErrors.incrementAndGet();
+        } else {
+            mOtherErrors.incrementAndGet();
+            Log.w(LOG_TAG, "Operation failed", e);
+        }
+    }
+
+    private static boolean isLockError(RuntimeException e) {
+        if (e instanceof SQLiteDatabaseLockedException) {
+            return true;
+        }
+        String message = e.getMessage();
+        return e instanceof SQLiteException && message != null
+                && (message.contains("SQLITE_BUSY") || message.contains("locked"));
+    }
+
+    private long countRows() {
+        Cursor cursor = mContentResolver.query(PetEntry.CONTENT_URI,
+                new String[]{PetEntry._ID}, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long[] merge(long[][] latencies) {
+        int size = 0;
+        for (long[] thread : latencies) {
+            size += thread == null ? 0 : thread.length;
+        }
+        long[] merged = new long[size];
+        int position = 0;
+        for (long[] thread : latencies) {
+            if (thread != null) {
+                System.arraycopy(thread, 0, merged, position, thread.length);
+                position += thread.length;
+            }
+        }
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    /**
+     * Outcome of a {@link #run()}.
+     */
+    public static final class Report {
+
+        public final long operations;
+        public final double operationsPerSecond;
+        public final double p50Millis;
+        public final double p99Millis;
+        public final double maxMillis;
+        public final int lockErrors;
+        public final int otherErrors;
+        public final long expectedRows;
+        public final long actualRows;
+
+        Report(long[] sortedLatencies, long elapsedNanos, int lockErrors, int otherErrors,
+               long expectedRows, long actualRows) {
+            this.operations = sortedLatencies.length;
+            this.operationsPerSecond = elapsedNanos == 0 ? 0 : operations * 1e9 / elapsedNanos;
+            this.p50Millis = percentile(sortedLatencies, 0.50);
+            this.p99Millis = percentile(sortedLatencies, 0.99);
+            this.maxMillis = percentile(sortedLatencies, 1.0);
+            this.lockErrors = lockErrors;
+            this.otherErrors = otherErrors;
+            this.expectedRows = expectedRows;
+            this.actualRows = actualRows;
+        }
+
+        private static double percentile(long[] sorted, double fraction) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(fraction * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+
+        /**
+         * True if the final number of rows is what the writers expect.
+         */
+        public boolean rowCountMatches() {
+            return expectedRows == actualRows;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d ops, %.0f ops/s, p50 %.2f ms, p99 %.2f ms, max %.2f ms, "
+                            + "%d lock errors, %d other errors, rows %d/%d %s",
+                    operations, operationsPerSecond, p50Millis, p99Millis, maxMillis,
+                    lockErrors, otherErrors, actualRows, expectedRows,
+                    rowCountMatches() ? "OK" : "MISMATCH");
+        }
+    }
+}